@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.google.common.io.CharStreams;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pegdown.PegDownProcessor;
+
+/**
+ * Markdown to storage format conversion, as done for each page on deploy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param
+    public Corpus corpus;
+
+    private final PegDownProcessor pdp = new PegDownProcessor();
+    private final MarkdownEngine commonMark = new CommonMarkEngine();
+    private File images;
+    private String markdown;
+
+    @Setup
+    public void setUp() throws IOException {
+        images = Files.createTempDirectory("cpages-images").toFile();
+        Corpus.writeImages(images.toPath());
+        markdown = corpus.markdown();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File image : images.listFiles()) {
+            image.delete();
+        }
+        images.delete();
+    }
+
+    /**
+     * Parse with pegdown and serialize to a string.
+     */
+    @Benchmark
+    public String pegdown() {
+        return new ConfluenceStorageSerializer(new ImageAttachments(images))
+                .toHtml(pdp.parseMarkdown(markdown.toCharArray()));
+    }
+
+    /**
+     * Parse with pegdown and serialize to a writer, as when deploying.
+     */
+    @Benchmark
+    public void pegdownStreamed() throws IOException {
+        new ConfluenceStorageSerializer(new ImageAttachments(images))
+                .write(pdp.parseMarkdown(markdown.toCharArray()),
+                        CharStreams.nullWriter());
+    }
+
+    @Benchmark
+    public String commonMark() {
+        return commonMark.toStorage(markdown, new ImageAttachments(images));
+    }
+
+    @Benchmark
+    public void commonMarkStreamed() throws IOException {
+        commonMark.toStorage(markdown, new ImageAttachments(images),
+                CharStreams.nullWriter());
+    }
+}
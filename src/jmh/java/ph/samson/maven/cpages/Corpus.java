@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generated pages representative of real wiki content.
+ */
+public enum Corpus {
+
+    /**
+     * A page of a few sections.
+     */
+    SMALL(5, 0, 0, 1),
+    /**
+     * A generated reference page of several hundred sections.
+     */
+    LONG(800, 0, 0, 0),
+    /**
+     * A page that is mostly a table with many columns.
+     */
+    WIDE_TABLE(1, 1000, 20, 0),
+    /**
+     * A page of screenshots and diagrams.
+     */
+    IMAGES(40, 0, 0, 10);
+
+    /**
+     * Number of distinct image files referenced.
+     */
+    private static final int IMAGE_FILES = 20;
+
+    private final int sections;
+    private final int rows;
+    private final int columns;
+    private final int images;
+
+    Corpus(int sections, int rows, int columns, int images) {
+        this.sections = sections;
+        this.rows = rows;
+        this.columns = columns;
+        this.images = images;
+    }
+
+    /**
+     * @return Markdown source of the page
+     */
+    public String markdown() {
+        StringBuilder md = new StringBuilder("# Generated Page\n\n");
+        for (int s = 0; s < sections; s++) {
+            md.append("## Section ").append(s).append("\n\n")
+                    .append("Some *emphasized* and **strong** text with ")
+                    .append("`code`, a [link](http://example.com/").append(s)
+                    .append(") and an_underscored_word.\nA second line of ")
+                    .append("the paragraph.\n\n")
+                    .append("* first item\n* second item\n")
+                    .append("    1. nested\n    2. list\n\n")
+                    .append("> quoted text\n\n")
+                    .append("    int x = ").append(s).append(";\n\n");
+            for (int i = 0; i < images; i++) {
+                md.append("![image ").append(i).append("](")
+                        .append(imageName(s * images + i)).append(")\n\n");
+            }
+        }
+        if (rows > 0) {
+            for (int c = 0; c < columns; c++) {
+                md.append("| Column ").append(c).append(' ');
+            }
+            md.append("|\n");
+            for (int c = 0; c < columns; c++) {
+                md.append("|----------");
+            }
+            md.append("|\n");
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    md.append("| `v").append(r).append('.').append(c)
+                            .append("` *x* ");
+                }
+                md.append("|\n");
+            }
+        }
+        return md.toString();
+    }
+
+    /**
+     * Create the image files the pages refer to. Their content does not
+     * matter to conversion.
+     *
+     * @param dir directory to create them in
+     * @throws IOException if the files cannot be written
+     */
+    public static void writeImages(Path dir) throws IOException {
+        for (int i = 0; i < IMAGE_FILES; i++) {
+            Files.write(dir.resolve(imageName(i)), new byte[] {0});
+        }
+    }
+
+    private static String imageName(int i) {
+        return "image" + (i % IMAGE_FILES) + ".png";
+    }
+}
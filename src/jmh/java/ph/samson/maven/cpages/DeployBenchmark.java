@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
+import org.apache.maven.settings.Proxy;
+import org.apache.maven.settings.Server;
+import org.apache.maven.settings.Settings;
+import org.apache.maven.settings.building.SettingsProblem;
+import org.apache.maven.settings.crypto.SettingsDecrypter;
+import org.apache.maven.settings.crypto.SettingsDecryptionResult;
+import org.codehaus.plexus.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ph.samson.maven.cpages.rest.FakeConfluence;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Deploying a whole tree of pages to a {@link FakeConfluence}.
+ *
+ * Each operation is a first deploy, from rendering to creating every page and
+ * attachment. The {@code pages} counter gives the number of pages deployed
+ * per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class DeployBenchmark {
+
+    /**
+     * Number of child pages of each page.
+     */
+    private static final int FAN_OUT = 5;
+
+    private static final String SERVER_ID = "fake";
+
+    @Param({"10", "100"})
+    public int pages;
+
+    /**
+     * Pages deployed at once.
+     */
+    @Param({"1", "16"})
+    public int threads;
+
+    @Param({"pooled", "urlconnection"})
+    public String transport;
+
+    /**
+     * Deploy on virtual threads, which needs JDK 21 or later.
+     */
+    @Param({"false"})
+    public boolean virtualThreads;
+
+    /**
+     * List existing pages up front instead of looking up each page.
+     */
+    @Param({"true"})
+    public boolean prefetch;
+
+    /**
+     * Lookups combined into one search, 1 for none.
+     */
+    @Param({"1"})
+    public int lookupBatchSize;
+
+    /**
+     * Milliseconds added to every request.
+     */
+    @Param({"0", "20"})
+    public long latency;
+
+    /**
+     * Bytes per second request and response bodies are transferred at, 0 for
+     * no limit.
+     */
+    @Param({"0"})
+    public long bandwidth;
+
+    /**
+     * Fraction of requests failed with 429 or 503 responses, half each.
+     */
+    @Param({"0"})
+    public double errorRate;
+
+    /**
+     * Pages deployed, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Deployed {
+
+        public long pages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pages = 0;
+        }
+    }
+
+    private FakeConfluence confluence;
+    private Path root;
+    private Path target;
+
+    @Setup
+    public void setUp() throws IOException {
+        confluence = new FakeConfluence();
+        confluence.setLatency(latency);
+        confluence.setBandwidth(bandwidth);
+        confluence.setThrottleRate(errorRate / 2);
+        confluence.setErrorRate(errorRate / 2);
+
+        root = Files.createTempDirectory("cpages-deploy");
+        target = root.resolve("target");
+        Path images = Files.createDirectories(root.resolve("images"));
+        Corpus.writeImages(images);
+        String markdown = Corpus.SMALL.markdown();
+        Path[] dirs = new Path[pages];
+        for (int i = 0; i < pages; i++) {
+            Path parent = i == 0
+                    ? root.resolve("src")
+                    : dirs[(i - 1) / FAN_OUT];
+            dirs[i] = Files.createDirectories(parent.resolve("Page " + i));
+            Files.write(dirs[i].resolve("page.md"), markdown.getBytes(UTF_8));
+            try (Stream<Path> files = Files.list(images)) {
+                for (Path image : (Iterable<Path>) files::iterator) {
+                    Files.copy(image, dirs[i].resolve(image.getFileName()));
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() throws IOException {
+        confluence.clear();
+        delete(target);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        confluence.close();
+        delete(root);
+    }
+
+    @Benchmark
+    public void deploy(Deployed deployed)
+            throws MojoExecutionException, MojoFailureException {
+        mojo().execute();
+        deployed.pages += confluence.getPageCount();
+    }
+
+    /**
+     * Configure a mojo as Maven would.
+     */
+    private DeployMojo mojo() {
+        DeployMojo mojo = new DeployMojo();
+        PluginDescriptor plugin = new PluginDescriptor();
+        plugin.setVersion("benchmark");
+        Settings settings = new Settings();
+        Server server = new Server();
+        server.setId(SERVER_ID);
+        server.setUsername("user");
+        server.setPassword("password");
+        settings.addServer(server);
+
+        set(mojo, "srcDir", root.resolve("src").toFile());
+        set(mojo, "genDir", target.resolve("generated").toFile());
+        set(mojo, "serverId", SERVER_ID);
+        set(mojo, "endpoint", confluence.getEndpoint());
+        set(mojo, "spaceKey", "BENCH");
+        set(mojo, "markdownEngine", "pegdown");
+        set(mojo, "threads", threads);
+        set(mojo, "transport", transport);
+        set(mojo, "virtualThreads", virtualThreads);
+        set(mojo, "retries", 5);
+        set(mojo, "diagramTimeout", 60);
+        set(mojo, "diagramFormat", "png");
+        set(mojo, "diagramPngFallback", true);
+        set(mojo, "optimizeImages", false);
+        set(mojo, "pipelineDepth", 64);
+        set(mojo, "manifest", target.resolve("cpages-manifest.json").toFile());
+        set(mojo, "fingerprints",
+                target.resolve("cpages-fingerprints.json").toFile());
+        set(mojo, "prefetch", prefetch);
+        set(mojo, "lookupBatchSize", lookupBatchSize);
+        set(mojo, "lookupWindow", 20L);
+        set(mojo, "deleteOrphanAttachments", true);
+        set(mojo, "plugin", plugin);
+        set(mojo, "settings", settings);
+        set(mojo, "decrypter", (SettingsDecrypter) request
+                -> new SettingsDecryptionResult() {
+
+            @Override
+            public Server getServer() {
+                return request.getServers().get(0);
+            }
+
+            @Override
+            public List<Server> getServers() {
+                return request.getServers();
+            }
+
+            @Override
+            public Proxy getProxy() {
+                return null;
+            }
+
+            @Override
+            public List<Proxy> getProxies() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public List<SettingsProblem> getProblems() {
+                return Collections.emptyList();
+            }
+        });
+        return mojo;
+    }
+
+    private static void set(DeployMojo mojo, String field, Object value) {
+        try {
+            ReflectionUtils.setVariableValueInObject(mojo, field, value);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot set " + field, ex);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files
+                    .sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
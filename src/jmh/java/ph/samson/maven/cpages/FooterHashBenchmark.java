@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ph.samson.maven.cpages.rest.StorageBody;
+
+import static com.google.common.hash.Hashing.sha1;
+
+/**
+ * Adding the footer to a converted page and computing its content hash.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FooterHashBenchmark {
+
+    private static final String SCM_URL
+            = "https://github.com/esamson/cpages-maven-plugin";
+
+    @Param
+    public Corpus corpus;
+
+    private File images;
+    private File body;
+    private String converted;
+
+    @Setup
+    public void setUp() throws IOException {
+        images = Files.createTempDirectory("cpages-images").toFile();
+        Corpus.writeImages(images.toPath());
+        converted = new CommonMarkEngine().toStorage(corpus.markdown(),
+                new ImageAttachments(images));
+        body = File.createTempFile("cpages-body", ".xml");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File image : images.listFiles()) {
+            image.delete();
+        }
+        images.delete();
+        body.delete();
+    }
+
+    @Benchmark
+    public String footer() {
+        return DeployMojo.footer(SCM_URL);
+    }
+
+    /**
+     * Append the footer to the body in memory and hash the result.
+     */
+    @Benchmark
+    public String concatenateAndHash() {
+        return sha1().hashUnencodedChars(converted + DeployMojo.footer(SCM_URL))
+                .toString();
+    }
+
+    /**
+     * Write the body and footer to a file, hashing along the way, as when
+     * deploying.
+     */
+    @Benchmark
+    public String streamAndHash() throws IOException {
+        try (StorageBody.Output out = new StorageBody.Output(body)) {
+            out.write(converted);
+            out.write(DeployMojo.footer(SCM_URL));
+            return out.toBody().getHash();
+        }
+    }
+}
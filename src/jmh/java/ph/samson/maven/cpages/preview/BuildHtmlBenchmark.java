@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.preview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import net.sourceforge.plantuml.FileFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ph.samson.maven.cpages.Corpus;
+import ph.samson.maven.cpages.MarkdownEngine;
+import ph.samson.maven.cpages.PlantUml;
+import ph.samson.maven.cpages.metrics.Trace;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Building the HTML preview of a page, including writing it out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildHtmlBenchmark {
+
+    @Param
+    public Corpus corpus;
+
+    @Param({"pegdown", "commonmark"})
+    public String engine;
+
+    private Path root;
+    private Path page;
+    private PlantUml plantUml;
+    private PreviewBuilder builder;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("cpages-preview");
+        Path wikiDir = Files.createDirectories(root.resolve("src/Page"));
+        Corpus.writeImages(wikiDir);
+        page = Files.write(wikiDir.resolve("page.md"),
+                corpus.markdown().getBytes(UTF_8));
+
+        Path outputDir = root.resolve("preview");
+        plantUml = new PlantUml(1, 60, FileFormat.PNG, false, null, 0);
+        builder = new PreviewBuilder(root.resolve("src"), outputDir,
+                new PreviewLauncher(outputDir), plantUml,
+                MarkdownEngine.named(engine), Trace.OFF);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        plantUml.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted((a, b) -> b.compareTo(a))
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Path buildHtml() throws IOException {
+        return builder.buildHtml(page);
+    }
+}
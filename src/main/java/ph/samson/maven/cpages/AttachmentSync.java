@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.rest.Confluence;
+import ph.samson.maven.cpages.rest.model.Attachment;
+
+/**
+ * Makes the attachments of a page match a set of local files.
+ *
+ * Attachments are matched by file name. An attachment whose content hash, as
+ * recorded in its comment, matches the local file is left alone. A new file
+ * with the same content as an attachment that is no longer referenced is
+ * handled by renaming that attachment instead of uploading it again. New
+ * files are uploaded in batches and attachments that are no longer referenced
+ * are optionally deleted.
+ *
+ * The attachment listings of pages synchronized at about the same time can be
+ * fetched in one search.
+ */
+class AttachmentSync {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(AttachmentSync.class);
+
+    /**
+     * Maximum number of files uploaded in a single request.
+     */
+    static final int BATCH_SIZE = 20;
+
+    private final Confluence confluence;
+    private final boolean deleteOrphans;
+    private final Function<String, List<Attachment>> listing;
+
+    /**
+     * @param confluence Confluence holding the attachments
+     * @param deleteOrphans delete attachments that have no local file
+     * @param batchSize maximum number of pages whose attachments are listed
+     * at once, 1 to list each page on its own
+     * @param window milliseconds to wait for other listings to combine with
+     */
+    AttachmentSync(Confluence confluence, boolean deleteOrphans,
+            int batchSize, long window) {
+        this.confluence = confluence;
+        this.deleteOrphans = deleteOrphans;
+        if (batchSize > 1) {
+            Coalescer<String, List<Attachment>> coalescer = new Coalescer<>(
+                    batchSize, window, confluence::findAttachments);
+            listing = pageId -> {
+                List<Attachment> attachments = coalescer.get(pageId);
+                return attachments == null
+                        ? Collections.emptyList()
+                        : attachments;
+            };
+        } else {
+            listing = confluence::getAllAttachments;
+        }
+    }
+
+    /**
+     * Synchronize the attachments of a page.
+     *
+     * @param pageId page holding the attachments
+     * @param files local files mapped to their content hash
+     * @param newPage the page was just created and has no attachments yet
+     */
+    void sync(String pageId, Map<File, String> files, boolean newPage) {
+        Map<String, Attachment> remote = new HashMap<>();
+        if (!newPage) {
+            for (Attachment attachment : listing.apply(pageId)) {
+                remote.put(attachment.getTitle(), attachment);
+            }
+        }
+
+        Map<File, String> added = new LinkedHashMap<>();
+        for (Map.Entry<File, String> file : files.entrySet()) {
+            Attachment existing = remote.remove(file.getKey().getName());
+            if (existing == null) {
+                added.put(file.getKey(), file.getValue());
+            } else if (file.getValue().equals(comment(existing))) {
+                log.debug("No changes to attachment {}", existing.getTitle());
+            } else {
+                confluence.updateAttachment(existing, file.getKey(),
+                        file.getValue());
+            }
+        }
+
+        // whatever is left in remote has no local file of the same name
+        Map<String, Attachment> orphans = new HashMap<>();
+        for (Attachment orphan : remote.values()) {
+            String hash = comment(orphan);
+            if (hash != null) {
+                orphans.putIfAbsent(hash, orphan);
+            }
+        }
+        List<Attachment> renamed = new ArrayList<>();
+        for (Map.Entry<File, String> file
+                : new ArrayList<>(added.entrySet())) {
+            Attachment orphan = orphans.remove(file.getValue());
+            if (orphan != null) {
+                confluence.renameAttachment(orphan, file.getKey().getName());
+                renamed.add(orphan);
+                added.remove(file.getKey());
+            }
+        }
+        remote.values().removeAll(renamed);
+
+        List<File> pending = new ArrayList<>(added.keySet());
+        for (int i = 0; i < pending.size(); i += BATCH_SIZE) {
+            Map<File, String> batch = new LinkedHashMap<>();
+            for (File file : pending.subList(i,
+                    Math.min(pending.size(), i + BATCH_SIZE))) {
+                batch.put(file, added.get(file));
+            }
+            confluence.createAttachments(pageId, batch);
+        }
+
+        if (deleteOrphans) {
+            for (Attachment orphan : remote.values()) {
+                confluence.deleteAttachment(orphan);
+            }
+        } else if (!remote.isEmpty()) {
+            log.info("Keeping {} unreferenced attachments of page {}",
+                    remote.size(), pageId);
+        }
+    }
+
+    private static String comment(Attachment attachment) {
+        return attachment.getMetadata() == null ? null
+                : attachment.getMetadata().getComment();
+    }
+}
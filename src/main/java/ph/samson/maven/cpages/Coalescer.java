@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines lookups made at about the same time into one batch lookup.
+ *
+ * The first caller of a batch waits up to the window for others to join it,
+ * or until the batch is full, then looks up the whole batch and hands each
+ * caller its result. Callers asking for a key already in the open batch share
+ * its result. Waiting is done on a {@link Lock} so virtual threads do not pin
+ * their carrier.
+ *
+ * @param <K> key looked up
+ * @param <V> value found
+ */
+class Coalescer<K, V> {
+
+    private static final Logger log = LoggerFactory.getLogger(Coalescer.class);
+
+    private final int batchSize;
+    private final long window;
+    private final Function<Set<K>, Map<K, V>> lookup;
+    private final Lock lock = new ReentrantLock();
+    private final Condition full = lock.newCondition();
+    private Map<K, CompletableFuture<V>> open;
+
+    /**
+     * @param batchSize maximum number of keys looked up at once
+     * @param window milliseconds to wait for more keys before looking up a
+     * batch
+     * @param lookup looks up the keys of a batch, leaving out those not found
+     */
+    Coalescer(int batchSize, long window,
+            Function<Set<K>, Map<K, V>> lookup) {
+        this.batchSize = batchSize;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.lookup = lookup;
+    }
+
+    /**
+     * Look up a key along with the keys of other callers.
+     *
+     * @param key key to look up
+     * @return the value found, null if none
+     * @throws RuntimeException if the lookup of the batch failed
+     */
+    V get(K key) {
+        Map<K, CompletableFuture<V>> batch;
+        CompletableFuture<V> result;
+        lock.lock();
+        try {
+            boolean leader = open == null;
+            if (leader) {
+                open = new LinkedHashMap<>();
+            }
+            batch = open;
+            result = batch.computeIfAbsent(key,
+                    k -> new CompletableFuture<>());
+            if (batch.size() >= batchSize) {
+                // no more room, so nobody else joins
+                open = null;
+                full.signalAll();
+            }
+            if (!leader) {
+                batch = null;
+            } else {
+                long remaining = window;
+                try {
+                    while (open == batch && remaining > 0) {
+                        remaining = full.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (open == batch) {
+                    open = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (batch != null) {
+            resolve(batch);
+        }
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private void resolve(Map<K, CompletableFuture<V>> batch) {
+        log.debug("Looking up {} at once", batch.size());
+        Map<K, V> found;
+        try {
+            found = lookup.apply(
+                    Collections.unmodifiableSet(batch.keySet()));
+        } catch (RuntimeException | Error ex) {
+            // fail the callers instead of leaving them waiting
+            for (CompletableFuture<V> result : batch.values()) {
+                result.completeExceptionally(ex);
+            }
+            return;
+        }
+        batch.forEach((key, result) -> result.complete(found.get(key)));
+    }
+}
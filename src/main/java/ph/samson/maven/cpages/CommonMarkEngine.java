@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import org.commonmark.html.HtmlRenderer;
+import org.commonmark.html.HtmlWriter;
+import org.commonmark.html.renderer.NodeRenderer;
+import org.commonmark.html.renderer.NodeRendererContext;
+import org.commonmark.node.Image;
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+
+/**
+ * Converts Markdown with commonmark-java, which parses in linear time.
+ *
+ * Images become the same storage format elements as with pegdown. Other
+ * output follows the CommonMark spec, so it may differ from pegdown's in
+ * details such as the handling of nested lists.
+ */
+class CommonMarkEngine implements MarkdownEngine {
+
+    private final Parser parser = Parser.builder().build();
+
+    @Override
+    public Document parse(String markdown) {
+        Node document = parser.parse(markdown);
+        return (images, out) -> {
+            try {
+                storageRenderer(images).render(document, out);
+            } catch (RuntimeException ex) {
+                // HtmlWriter wraps errors of the output
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw ex;
+            }
+        };
+    }
+
+    @Override
+    public String toStorage(String markdown, ImageAttachments images) {
+        return storageRenderer(images).render(parser.parse(markdown));
+    }
+
+    private static HtmlRenderer storageRenderer(ImageAttachments images) {
+        return HtmlRenderer.builder()
+                .nodeRendererFactory(context
+                        -> new StorageImageRenderer(context, images))
+                .build();
+    }
+
+    @Override
+    public String toHtml(String markdown, UnaryOperator<String> imageUrls) {
+        return HtmlRenderer.builder()
+                .attributeProvider((node, attributes) -> {
+                    if (node instanceof Image) {
+                        String url = ((Image) node).getDestination();
+                        String rewritten = imageUrls.apply(url);
+                        if (!rewritten.equals(url)) {
+                            attributes.put("src", rewritten);
+                        }
+                    }
+                })
+                .build()
+                .render(parser.parse(markdown));
+    }
+
+    /**
+     * Renders images as {@code ac:image} elements.
+     */
+    private static class StorageImageRenderer implements NodeRenderer {
+
+        private final HtmlWriter html;
+        private final ImageAttachments images;
+
+        StorageImageRenderer(NodeRendererContext context,
+                ImageAttachments images) {
+            this.html = context.getHtmlWriter();
+            this.images = images;
+        }
+
+        @Override
+        public Set<Class<? extends Node>> getNodeTypes() {
+            return Collections.singleton(Image.class);
+        }
+
+        @Override
+        public void render(Node node) {
+            String href = ((Image) node).getDestination();
+            Map<String, String> attributes = new LinkedHashMap<>();
+            html.tag("ac:image");
+            if (ImageAttachments.isUrl(href)) {
+                attributes.put("ri:value", href);
+                html.tag("ri:url", attributes, true);
+            } else {
+                attributes.put("ri:filename", images.attach(href));
+                html.tag("ri:attachment", attributes, true);
+            }
+            html.tag("/ac:image");
+        }
+    }
+}
@@ -19,16 +19,17 @@ package ph.samson.maven.cpages;
 import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.util.List;
+import ph.samson.maven.cpages.rest.StorageBody;
 
 class ConfluencePage {
 
     private final String title;
-    private final String contents;
+    private final StorageBody body;
     private final List<File> attachments;
 
-    ConfluencePage(String title, String contents, List<File> attachments) {
+    ConfluencePage(String title, StorageBody body, List<File> attachments) {
         this.title = title;
-        this.contents = contents;
+        this.body = body;
         this.attachments = ImmutableList.copyOf(attachments);
     }
 
@@ -36,8 +37,8 @@ class ConfluencePage {
         return title;
     }
 
-    public String getContents() {
-        return contents;
+    public StorageBody getBody() {
+        return body;
     }
 
     public List<File> getAttachments() {
@@ -17,45 +17,93 @@
 package ph.samson.maven.cpages;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.List;
 import org.pegdown.LinkRenderer;
 import org.pegdown.ToHtmlSerializer;
+import org.pegdown.ast.Node;
+import org.pegdown.ast.RootNode;
+import org.pegdown.ast.SuperNode;
 
 class ConfluenceStorageSerializer extends ToHtmlSerializer {
 
-    private final File attachmentsDirectory;
-    private final List<File> attachments;
+    private final ImageAttachments images;
+    private Writer out;
 
     public ConfluenceStorageSerializer(File attachmentsDirectory) {
+        this(new ImageAttachments(attachmentsDirectory));
+    }
+
+    /**
+     * @param images resolves images to attachments
+     */
+    public ConfluenceStorageSerializer(ImageAttachments images) {
         super(new LinkRenderer());
-        this.attachmentsDirectory = attachmentsDirectory;
-        this.attachments = new ArrayList<>();
+        this.images = images;
     }
 
     List<File> getAttachments() {
-        return attachments;
+        return images.getAttachments();
+    }
+
+    /**
+     * Serialize to a writer instead of a string.
+     *
+     * Output is passed on after each top level block, so only the largest
+     * block is held in memory.
+     *
+     * @param root parsed Markdown
+     * @param out receives the storage format
+     * @throws IOException if the output cannot be written
+     */
+    void write(RootNode root, Writer out) throws IOException {
+        this.out = out;
+        try {
+            root.accept(this);
+            out.append(printer.sb);
+            printer.sb.setLength(0);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            this.out = null;
+        }
+    }
+
+    @Override
+    protected void visitChildren(SuperNode node) {
+        if (out == null || !(node instanceof RootNode)) {
+            super.visitChildren(node);
+            return;
+        }
+
+        for (Node child : node.getChildren()) {
+            child.accept(this);
+            // keep the last character so the printer still knows it is not
+            // at the start of the output
+            int flush = printer.sb.length() - 1;
+            if (flush > 0) {
+                try {
+                    out.append(printer.sb, 0, flush);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                printer.sb.delete(0, flush);
+            }
+        }
     }
 
     @Override
     protected void printImageTag(LinkRenderer.Rendering rendering) {
         printer.print("<ac:image>");
-        if (rendering.href.startsWith("http://")
-                || rendering.href.startsWith("https://")) {
+        if (ImageAttachments.isUrl(rendering.href)) {
             printer.print("<ri:url ri:value=\"");
             printer.print(rendering.href);
             printer.print("\" />");
         } else {
-            File attachment = new File(attachmentsDirectory, rendering.href);
-            if (attachment.canRead()) {
-                attachments.add(attachment);
-            } else {
-                throw new IllegalArgumentException("Cannot read attachment: "
-                        + attachment);
-            }
-
             printer.print("<ri:attachment ri:filename=\"");
-            printer.print(rendering.href);
+            printer.print(images.attach(rendering.href));
             printer.print("\" />");
         }
         printer.print("</ac:image>");
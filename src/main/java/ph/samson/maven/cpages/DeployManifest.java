@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.cedarsoftware.util.io.JsonIoException;
+import com.cedarsoftware.util.io.JsonObject;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record of what was deployed for each wiki dir.
+ *
+ * A manifest only applies to the Confluence target it was written for. One
+ * that was written for a different endpoint, space or parent page is
+ * discarded on load.
+ */
+class DeployManifest {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(DeployManifest.class);
+
+    /**
+     * Deployed state of a single wiki dir.
+     */
+    static class Entry {
+
+        private final String pageId;
+        private final int version;
+        private final String parentId;
+        private final String title;
+        private final String bodyHash;
+        private final Map<String, String> attachments;
+
+        Entry(String pageId, int version, String parentId, String title,
+                String bodyHash, Map<String, String> attachments) {
+            this.pageId = pageId;
+            this.version = version;
+            this.parentId = parentId;
+            this.title = title;
+            this.bodyHash = bodyHash;
+            this.attachments = ImmutableMap.copyOf(attachments);
+        }
+
+        String getPageId() {
+            return pageId;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getParentId() {
+            return parentId;
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        String getBodyHash() {
+            return bodyHash;
+        }
+
+        /**
+         * @return attachment file names mapped to their content hash
+         */
+        Map<String, String> getAttachments() {
+            return attachments;
+        }
+
+        Entry withAttachments(Map<String, String> attachments) {
+            return new Entry(pageId, version, parentId, title, bodyHash,
+                    attachments);
+        }
+    }
+
+    private final File file;
+    private final String target;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> inputs = new ConcurrentHashMap<>();
+    private volatile String commit;
+    private volatile String configuration;
+
+    private DeployManifest(File file, String target) {
+        this.file = file;
+        this.target = target;
+    }
+
+    /**
+     * Load the manifest from the given file.
+     *
+     * @param file manifest file, need not exist
+     * @param target identifies the Confluence location being deployed to
+     * @return the loaded manifest, empty if the file does not exist, cannot
+     * be read or was written for a different target
+     */
+    static DeployManifest load(File file, String target) {
+        DeployManifest manifest = new DeployManifest(file, target);
+        if (!file.isFile()) {
+            return manifest;
+        }
+
+        try {
+            Map<?, ?> json = JsonFiles.read(file);
+            if (!target.equals(json.get("target"))) {
+                log.info("Ignoring manifest for a different target: {}",
+                        json.get("target"));
+                return manifest;
+            }
+
+            manifest.commit = (String) json.get("commit");
+            manifest.configuration = (String) json.get("configuration");
+            Map<?, ?> pages = (Map<?, ?>) json.get("pages");
+            for (Map.Entry<?, ?> page : pages.entrySet()) {
+                Map<?, ?> value = (Map<?, ?>) page.getValue();
+                Map<String, String> attachments = new HashMap<>();
+                for (Map.Entry<?, ?> attachment
+                        : ((Map<?, ?>) value.get("attachments")).entrySet()) {
+                    attachments.put((String) attachment.getKey(),
+                            (String) attachment.getValue());
+                }
+                manifest.entries.put((String) page.getKey(), new Entry(
+                        (String) value.get("id"),
+                        ((Number) value.get("version")).intValue(),
+                        (String) value.get("parentId"),
+                        (String) value.get("title"),
+                        (String) value.get("hash"),
+                        attachments));
+            }
+            Map<?, ?> inputs = (Map<?, ?>) json.get("inputs");
+            if (inputs != null) {
+                for (Map.Entry<?, ?> input : inputs.entrySet()) {
+                    Set<String> files = new TreeSet<>();
+                    JsonObject<?, ?> list = (JsonObject<?, ?>) input.getValue();
+                    for (Object f : list.getArray()) {
+                        files.add((String) f);
+                    }
+                    manifest.inputs.put((String) input.getKey(), files);
+                }
+            }
+        } catch (IOException | JsonIoException | ClassCastException
+                | NullPointerException ex) {
+            log.warn("Ignoring unreadable manifest {}", file, ex);
+            manifest.entries.clear();
+            manifest.inputs.clear();
+            manifest.commit = null;
+            manifest.configuration = null;
+        }
+
+        return manifest;
+    }
+
+    /**
+     * @param wikiDir wiki dir path relative to the source directory
+     * @return recorded state, null if none
+     */
+    Entry get(String wikiDir) {
+        return entries.get(wikiDir);
+    }
+
+    /**
+     * @return git commit of the last complete deploy, null if unknown
+     */
+    String getCommit() {
+        return commit;
+    }
+
+    void setCommit(String commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * @return fingerprint of the plugin configuration of the last complete
+     * deploy, null if unknown
+     */
+    String getConfiguration() {
+        return configuration;
+    }
+
+    void setConfiguration(String configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Record the files outside a wiki dir that its page is built from, such
+     * as shared images and included diagrams.
+     *
+     * @param wikiDir wiki dir path relative to the source directory
+     * @param files paths relative to the source directory
+     */
+    void setInputs(String wikiDir, Set<String> files) {
+        if (files.isEmpty()) {
+            inputs.remove(wikiDir);
+        } else {
+            inputs.put(wikiDir, ImmutableSortedSet.copyOf(files));
+        }
+    }
+
+    /**
+     * @return wiki dir paths mapped to their recorded outside inputs
+     */
+    Map<String, Set<String>> getInputs() {
+        return Collections.unmodifiableMap(inputs);
+    }
+
+    void put(String wikiDir, Entry entry) {
+        entries.put(wikiDir, entry);
+    }
+
+    /**
+     * Forget all wiki dirs except the given ones.
+     *
+     * @param wikiDirs wiki dir paths relative to the source directory
+     */
+    void retain(Collection<String> wikiDirs) {
+        entries.keySet().retainAll(wikiDirs);
+        inputs.keySet().retainAll(wikiDirs);
+    }
+
+    void save() throws IOException {
+        Map<String, Object> pages = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry e = entry.getValue();
+            Map<String, Object> page = new LinkedHashMap<>();
+            page.put("id", e.getPageId());
+            page.put("version", e.getVersion());
+            page.put("parentId", e.getParentId());
+            page.put("title", e.getTitle());
+            page.put("hash", e.getBodyHash());
+            page.put("attachments", new TreeMap<>(e.getAttachments()));
+            pages.put(entry.getKey(), page);
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("target", target);
+        json.put("commit", commit);
+        json.put("configuration", configuration);
+        json.put("pages", pages);
+        Map<String, Object> files = new TreeMap<>();
+        for (Map.Entry<String, Set<String>> input : inputs.entrySet()) {
+            files.put(input.getKey(), input.getValue().toArray(new String[0]));
+        }
+        json.put("inputs", files);
+
+        JsonFiles.write(file, json, true);
+        log.info("Saved deploy manifest {}", file);
+    }
+}
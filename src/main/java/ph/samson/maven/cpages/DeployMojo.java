@@ -25,12 +25,23 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import javax.ws.rs.ClientErrorException;
+import net.sourceforge.plantuml.FileFormat;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
@@ -42,14 +53,20 @@ import org.apache.maven.settings.crypto.DefaultSettingsDecryptionRequest;
 import org.apache.maven.settings.crypto.SettingsDecrypter;
 import org.apache.maven.settings.crypto.SettingsDecryptionRequest;
 import org.apache.maven.settings.crypto.SettingsDecryptionResult;
-import org.pegdown.PegDownProcessor;
-import org.pegdown.ast.RootNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.metrics.Metrics;
+import ph.samson.maven.cpages.metrics.Trace;
 import ph.samson.maven.cpages.rest.Confluence;
-import ph.samson.maven.cpages.rest.model.Attachment;
-import ph.samson.maven.cpages.rest.model.AttachmentsResult;
+import ph.samson.maven.cpages.rest.StorageBody;
+import ph.samson.maven.cpages.rest.Transport;
 import ph.samson.maven.cpages.rest.model.Page;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+import ph.samson.maven.cpages.rest.model.Version;
+
+import static com.google.common.hash.Hashing.sha1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 
 /**
  * Deploy pages and attachments to Confluence
@@ -96,13 +113,269 @@ public class DeployMojo extends AbstractMojo {
             property = "confluence.parentTitle")
     private String parentTitle;
 
+    /**
+     * Markdown engine, either {@code pegdown} or {@code commonmark}.
+     */
+    @Parameter(name = "markdownEngine",
+            property = "confluence.markdownEngine",
+            defaultValue = "pegdown")
+    private String markdownEngine;
+
+    /**
+     * Number of pages, and separately of attachment sets, to deploy
+     * concurrently.
+     */
+    @Parameter(name = "threads",
+            property = "confluence.threads",
+            defaultValue = "4")
+    private int threads;
+
+    /**
+     * Run the Confluence requests of each page on a virtual thread, with
+     * {@link #threads} bounding how many pages are deployed at once. Needs
+     * JDK 21 or later; platform threads are used otherwise. As waiting
+     * requests then hold no platform thread, {@link #threads} can be set much
+     * higher.
+     */
+    @Parameter(name = "virtualThreads",
+            property = "confluence.virtualThreads",
+            defaultValue = "false")
+    private boolean virtualThreads;
+
+    /**
+     * HTTP connector to Confluence: {@code pooled} keeps a pool of
+     * connections alive, {@code urlconnection} uses the JDK's.
+     */
+    @Parameter(name = "transport",
+            property = "confluence.transport",
+            defaultValue = "pooled")
+    private String transport;
+
+    /**
+     * Maximum number of connections to Confluence. Defaults to twice the
+     * number of threads, as pages and attachments are deployed separately.
+     */
+    @Parameter(name = "maxConnections",
+            property = "confluence.maxConnections")
+    private int maxConnections;
+
+    /**
+     * Number of times a request is retried when Confluence throttles it or is
+     * unavailable. Retries wait as long as Confluence asks or else back off
+     * exponentially.
+     */
+    @Parameter(name = "retries",
+            property = "confluence.retries",
+            defaultValue = "5")
+    private int retries;
+
+    /**
+     * Number of pages to render concurrently. Defaults to the number of
+     * available processors.
+     */
+    @Parameter(name = "renderThreads",
+            property = "confluence.renderThreads")
+    private int renderThreads;
+
+    /**
+     * Number of PlantUML diagrams to render concurrently. Defaults to the
+     * number of available processors.
+     */
+    @Parameter(name = "diagramThreads",
+            property = "confluence.diagramThreads")
+    private int diagramThreads;
+
+    /**
+     * Seconds to wait for a single PlantUML diagram to render.
+     */
+    @Parameter(name = "diagramTimeout",
+            property = "confluence.diagramTimeout",
+            defaultValue = "60")
+    private int diagramTimeout;
+
+    /**
+     * Image format of PlantUML diagrams, either {@code png} or {@code svg}.
+     * Diagrams are still referenced by their PNG name in Markdown.
+     */
+    @Parameter(name = "diagramFormat",
+            property = "confluence.diagramFormat",
+            defaultValue = "png")
+    private String diagramFormat;
+
+    /**
+     * Render a diagram as PNG if it cannot be rendered in
+     * {@link #diagramFormat}.
+     */
+    @Parameter(name = "diagramPngFallback",
+            property = "confluence.diagramPngFallback",
+            defaultValue = "true")
+    private boolean diagramPngFallback;
+
+    /**
+     * Shrink PNG and JPEG attachments before upload by removing metadata,
+     * recompressing PNGs and scaling down images larger than
+     * {@link #imageMaxDimension}. Results are kept in {@link #genDir}.
+     */
+    @Parameter(name = "optimizeImages",
+            property = "confluence.optimizeImages",
+            defaultValue = "false")
+    private boolean optimizeImages;
+
+    /**
+     * Maximum width and height in pixels of optimized images, 0 for no limit.
+     */
+    @Parameter(name = "imageMaxDimension",
+            property = "confluence.imageMaxDimension",
+            defaultValue = "0")
+    private int imageMaxDimension;
+
+    /**
+     * Directory of rendered PlantUML diagrams, which may be shared by several
+     * projects.
+     */
+    @Parameter(name = "diagramCache",
+            property = "confluence.diagramCache",
+            defaultValue = "${user.home}/.m2/cpages/diagrams")
+    private File diagramCache;
+
+    /**
+     * Size in megabytes beyond which the least recently used diagrams are
+     * deleted from {@link #diagramCache}.
+     */
+    @Parameter(name = "diagramCacheSize",
+            property = "confluence.diagramCacheSize",
+            defaultValue = "256")
+    private long diagramCacheSize;
+
+    /**
+     * Maximum number of pages being rendered or deployed at once. Rendered
+     * pages wait for their parent to be deployed, so this bounds how far
+     * rendering can run ahead of the network.
+     */
+    @Parameter(name = "pipelineDepth",
+            property = "confluence.pipelineDepth",
+            defaultValue = "64")
+    private int pipelineDepth;
+
+    /**
+     * Record of deployed pages. Pages and attachments that have not changed
+     * since they were recorded here are skipped without contacting
+     * Confluence. Delete this file to force a full deploy.
+     */
+    @Parameter(name = "manifest",
+            property = "confluence.manifest",
+            defaultValue = "${project.build.directory}/cpages-manifest.json")
+    private File manifest;
+
+    /**
+     * Content hashes of attachment files, so that unchanged files need not be
+     * read again on the next deploy.
+     */
+    @Parameter(name = "fingerprints",
+            property = "confluence.fingerprints",
+            defaultValue = "${project.build.directory}/cpages-fingerprints.json")
+    private File fingerprints;
+
+    /**
+     * Request and stage metrics of the deploy as JSON.
+     */
+    @Parameter(name = "metricsJson",
+            property = "confluence.metricsJson",
+            defaultValue = "${project.build.directory}/cpages-metrics.json")
+    private File metricsJson;
+
+    /**
+     * Request and stage metrics of the deploy in the Prometheus text format.
+     */
+    @Parameter(name = "metricsPrometheus",
+            property = "confluence.metricsPrometheus",
+            defaultValue = "${project.build.directory}/cpages-metrics.prom")
+    private File metricsPrometheus;
+
+    /**
+     * Record a timeline of the stages of each page and of every request to
+     * Confluence in {@link #traceFile}.
+     */
+    @Parameter(name = "trace",
+            property = "confluence.trace",
+            defaultValue = "false")
+    private boolean trace;
+
+    /**
+     * Timeline of the deploy in the Chrome trace event format, which can be
+     * opened in chrome://tracing or Perfetto.
+     */
+    @Parameter(name = "traceFile",
+            property = "confluence.traceFile",
+            defaultValue = "${project.build.directory}/cpages-trace.json")
+    private File traceFile;
+
+    /**
+     * Only render and upload wiki dirs with files changed since
+     * {@link #sinceRevision}, including images and included diagrams they
+     * use from elsewhere. Other wiki dirs are assumed to be deployed
+     * already. Falls back to a full deploy if there is no revision to compare
+     * against or the configuration changed since the last deploy.
+     */
+    @Parameter(name = "incremental",
+            property = "confluence.incremental",
+            defaultValue = "false")
+    private boolean incremental;
+
+    /**
+     * Git revision to compare against in incremental mode. Defaults to the
+     * commit of the last complete deploy, as recorded in the manifest.
+     */
+    @Parameter(name = "sinceRevision",
+            property = "confluence.sinceRevision")
+    private String sinceRevision;
+
+    /**
+     * List all existing pages under the parent page, or in the space, in a
+     * few large requests instead of looking up each page by title.
+     */
+    @Parameter(name = "prefetch",
+            property = "confluence.prefetch",
+            defaultValue = "true")
+    private boolean prefetch;
+
+    /**
+     * Maximum number of page or attachment lookups made at about the same
+     * time that are combined into one search. Search results can lag behind
+     * changes made moments before, so this is off by default.
+     */
+    @Parameter(name = "lookupBatchSize",
+            property = "confluence.lookupBatchSize",
+            defaultValue = "1")
+    private int lookupBatchSize;
+
+    /**
+     * Milliseconds a lookup waits for others to combine with.
+     */
+    @Parameter(name = "lookupWindow",
+            property = "confluence.lookupWindow",
+            defaultValue = "20")
+    private long lookupWindow;
+
+    /**
+     * Delete attachments that are no longer referenced by their page.
+     */
+    @Parameter(name = "deleteOrphanAttachments",
+            property = "confluence.deleteOrphanAttachments",
+            defaultValue = "true")
+    private boolean deleteOrphanAttachments;
+
+    @Parameter(defaultValue = "${plugin}", readonly = true)
+    private PluginDescriptor plugin;
+
     @Parameter(defaultValue = "${settings}", readonly = true)
     private Settings settings;
 
     @Component
     private SettingsDecrypter decrypter;
 
-    private final List<Thread> viewers = new ArrayList<>();
+    private final List<Thread> viewers
+            = Collections.synchronizedList(new ArrayList<>());
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
@@ -111,33 +384,279 @@ public class DeployMojo extends AbstractMojo {
         }
 
         Server server = getServerSettings(serverId);
-        Confluence confluence = new Confluence(endpoint,
+        Metrics metrics = new Metrics(trace ? new Trace() : Trace.OFF);
+        try (Confluence confluence = new Confluence(endpoint,
                 server.getUsername(),
-                server.getPassword());
-        final Page parentPage;
+                server.getPassword(),
+                transport(),
+                maxConnections > 0 ? maxConnections : 2 * threads,
+                retries,
+                metrics)) {
+            deploy(confluence, metrics);
+        } finally {
+            metrics.report();
+            writeMetrics(metrics);
+        }
+
+        for (Thread viewer : viewers) {
+            try {
+                viewer.join();
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Deploy all pages under {@link #srcDir}.
+     *
+     * @param confluence client to deploy with
+     * @param metrics records stage timings
+     * @throws MojoExecutionException if deploying fails
+     */
+    private void deploy(Confluence confluence, Metrics metrics)
+            throws MojoExecutionException {
+        final PageHandle parentPage;
         if (parentTitle != null) {
-            parentPage = confluence.getPage(spaceKey, parentTitle);
-            if (parentPage == null) {
+            Page found = confluence.getPage(spaceKey, parentTitle);
+            if (found == null) {
                 throw new MojoExecutionException("Parent page '" + parentTitle
                         + "' does not exist under space " + spaceKey);
             }
+            parentPage = new PageHandle(found);
         } else {
             parentPage = null;
         }
 
+        DeployManifest deployManifest = DeployManifest.load(manifest,
+                endpoint + "#" + spaceKey + "/"
+                + (parentTitle == null ? "" : parentTitle));
+        GitChanges git = incremental ? new GitChanges(srcDir.toPath()) : null;
+        String configuration = deployConfiguration();
         try {
-            Files.walkFileTree(srcDir.toPath(),
-                    new Deployer(confluence, parentPage));
+            long scanStart = System.nanoTime();
+            String head = incremental ? cleanHead(git) : null;
+            List<Path> wikiDirs = wikiDirs();
+            deployManifest.retain(wikiDirs.stream()
+                    .map(this::manifestKey)
+                    .collect(Collectors.toList()));
+            Set<Path> changed = incremental
+                    ? changedWikiDirs(git, deployManifest, configuration)
+                    : null;
+            metrics.recordStage("scan", null, scanStart);
+            Fingerprints fileHashes = Fingerprints.load(fingerprints);
+            boolean virtual = virtualThreads();
+            try (PlantUml plantUml = new PlantUml(diagramThreads > 0
+                    ? diagramThreads
+                    : Runtime.getRuntime().availableProcessors(),
+                    diagramTimeout, diagramFormat(), diagramPngFallback,
+                    diagramCache, diagramCacheSize * 1024 * 1024)) {
+                PageIndex pageIndex = new PageIndex(confluence, spaceKey,
+                        parentPage, prefetch, lookupBatchSize, lookupWindow);
+                new DeployScheduler(renderThreads > 0
+                        ? renderThreads
+                        : Runtime.getRuntime().availableProcessors(),
+                        threads, pipelineDepth, virtual).deploy(
+                        srcDir.toPath(), wikiDirs, parentPage,
+                        new Deployer(confluence, pageIndex, deployManifest,
+                                fileHashes, plantUml, markdownEngine(),
+                                changed, metrics, virtual));
+                plantUml.report();
+                deployManifest.setConfiguration(configuration);
+                if (head != null) {
+                    deployManifest.setCommit(head);
+                }
+            } finally {
+                deployManifest.save();
+                fileHashes.save();
+            }
         } catch (IOException ex) {
             throw new MojoExecutionException("Markdown conversion failed", ex);
         }
+    }
 
-        for (Thread viewer : viewers) {
-            try {
-                viewer.join();
-            } catch (InterruptedException ignore) {
+    /**
+     * Write metrics, and the trace if recorded, to the configured files.
+     * Failing to is not worth failing the build for.
+     */
+    private void writeMetrics(Metrics metrics) {
+        try {
+            if (metricsJson != null) {
+                metrics.writeJson(metricsJson);
+            }
+            if (metricsPrometheus != null) {
+                metrics.writePrometheus(metricsPrometheus);
+            }
+            if (metrics.getTrace().isEnabled()) {
+                metrics.getTrace().write(traceFile);
+                log.info("Wrote trace to {}", traceFile);
+            }
+        } catch (IOException ex) {
+            log.warn("Cannot write metrics", ex);
+        }
+    }
+
+    /**
+     * List the wiki dirs under {@link #srcDir}, each one after its parent.
+     *
+     * @return wiki dirs
+     * @throws IOException if the source directory cannot be read
+     */
+    private List<Path> wikiDirs() throws IOException {
+        List<Path> wikiDirs = new ArrayList<>();
+        Files.walkFileTree(srcDir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                if (dir.toFile().equals(srcDir)) {
+                    // skip top directory
+                    return FileVisitResult.CONTINUE;
+                }
+
+                contentFile(dir);
+                wikiDirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return wikiDirs;
+    }
+
+    /**
+     * Find the wiki dirs with files changed since the last deploy.
+     *
+     * @param git source tree
+     * @param manifest records the commit and configuration of the last deploy
+     * @param configuration fingerprint of the current configuration
+     * @return changed wiki dirs, or null if everything should be deployed
+     */
+    private Set<Path> changedWikiDirs(GitChanges git, DeployManifest manifest,
+            String configuration) {
+        String revision = sinceRevision != null
+                ? sinceRevision
+                : manifest.getCommit();
+        if (revision == null) {
+            log.info("No previous deploy recorded, deploying everything");
+            return null;
+        }
+
+        if (!configuration.equals(manifest.getConfiguration())) {
+            log.info("Configuration changed since the last deploy,"
+                    + " deploying everything");
+            return null;
+        }
+
+        Set<Path> changed;
+        try {
+            changed = git.changedSince(revision);
+        } catch (IOException ex) {
+            log.warn("Cannot list changes since {}, deploying everything",
+                    revision, ex);
+            return null;
+        }
+
+        Set<Path> wikiDirs = new HashSet<>();
+        for (Path file : changed) {
+            Path dir = file.getParent();
+            if (dir.startsWith(srcDir.toPath())
+                    && !dir.equals(srcDir.toPath())) {
+                wikiDirs.add(dir);
             }
         }
+        // pages built from shared images or diagrams outside their dir
+        for (Map.Entry<String, Set<String>> inputs
+                : manifest.getInputs().entrySet()) {
+            for (String input : inputs.getValue()) {
+                if (changed.contains(
+                        srcDir.toPath().resolve(input).normalize())) {
+                    wikiDirs.add(srcDir.toPath().resolve(inputs.getKey()));
+                    break;
+                }
+            }
+        }
+        log.info("{} wiki dirs changed since {}", wikiDirs.size(), revision);
+        return wikiDirs;
+    }
+
+    /**
+     * @param git source tree
+     * @return current git commit, null if not in a git work tree or if the
+     * work tree has uncommitted changes that the commit does not describe
+     */
+    private static String cleanHead(GitChanges git) {
+        try {
+            if (!git.isClean()) {
+                log.info("Uncommitted changes, not recording git revision");
+                return null;
+            }
+            return git.head();
+        } catch (IOException ex) {
+            log.debug("Not recording git revision", ex);
+            return null;
+        }
+    }
+
+    /**
+     * List the files outside a wiki dir that its page is built from.
+     *
+     * @param dir wiki dir
+     * @param cPage rendered page
+     * @return file paths relative to the source directory
+     * @throws IOException if a diagram source cannot be read
+     */
+    private Set<String> inputs(Path dir, ConfluencePage cPage)
+            throws IOException {
+        Set<File> files = new HashSet<>(cPage.getAttachments());
+        File[] diagrams = dir.toFile().listFiles((file)
+                -> file.getName().endsWith(".puml"));
+        for (File diagram : diagrams) {
+            files.addAll(DiagramCache.includes(diagram));
+        }
+
+        Path src = srcDir.toPath().toAbsolutePath().normalize();
+        Path generated = genDir.toPath().toAbsolutePath().normalize();
+        Path wikiDir = dir.toAbsolutePath().normalize();
+        Set<String> inputs = new HashSet<>();
+        for (File file : files) {
+            Path path = file.toPath().toAbsolutePath().normalize();
+            if (!wikiDir.equals(path.getParent())
+                    && !path.startsWith(generated)) {
+                inputs.add(src.relativize(path).toString()
+                        .replace(File.separatorChar, '/'));
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @param wikiDir wiki dir
+     * @return key of the wiki dir in the deploy manifest
+     */
+    private String manifestKey(Path wikiDir) {
+        return srcDir.toPath().relativize(wikiDir).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Get the Markdown file of the given wiki dir.
+     *
+     * @param dir wiki dir
+     * @return content file
+     * @throws IllegalArgumentException if the wiki dir does not have exactly
+     * one content file
+     */
+    private static File contentFile(Path dir) {
+        File[] contentFiles = dir.toFile().listFiles((file)
+                -> file.getName().endsWith(".md"));
+        if (contentFiles.length < 1) {
+            log.error("{} has no page content", dir);
+            throw new IllegalArgumentException("No page content in " + dir);
+        } else if (contentFiles.length > 1) {
+            log.error("{} has more than one content file: {}",
+                    dir, contentFiles);
+            throw new IllegalArgumentException(
+                    "More than one content file in " + dir);
+        }
+        return contentFiles[0];
     }
 
     /**
@@ -166,10 +685,21 @@ public class DeployMojo extends AbstractMojo {
         return outputDir;
     }
 
+    /**
+     * Name of the file a page body is written to in its output directory.
+     */
+    private static final String BODY_FILE = ".cpages-body.xml";
+
     private static final String CPAGES_URL
             = "https://github.com/esamson/cpages-maven-plugin";
 
-    private String footer() {
+    /**
+     * Build the footer added to every page.
+     *
+     * @param scmUrl source project to link to, may be null
+     * @return footer in storage format
+     */
+    static String footer(String scmUrl) {
         StringBuilder footer = new StringBuilder();
 
         footer.append("<br /><br /><br /><br />")
@@ -198,28 +728,59 @@ public class DeployMojo extends AbstractMojo {
         return footer.toString();
     }
 
-    private void updateAttachments(Confluence confluence, String pageId,
-            List<File> attachments) throws IOException {
-        Map<String, File> filenameMap = new HashMap<>();
-        for (File attachment : attachments) {
-            filenameMap.put(attachment.getName(), attachment);
+    private FileFormat diagramFormat() throws MojoExecutionException {
+        try {
+            return PlantUml.format(diagramFormat);
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException(ex.getMessage(), ex);
         }
+    }
 
-        AttachmentsResult existing = confluence.getAttachments(pageId);
-        for (Attachment attachment : existing.getResults()) {
-            File update = filenameMap.get(attachment.getTitle());
-            if (update != null) {
-                confluence.updateAttachment(attachment, update);
-                filenameMap.remove(attachment.getTitle());
-            }
+    /**
+     * Describe everything besides the source that affects rendered pages.
+     */
+    private String renderConfiguration() {
+        return (plugin == null ? "" : plugin.getVersion()) + "\n"
+                + markdownEngine.toLowerCase(Locale.ROOT) + "\n"
+                + footer(scmUrl);
+    }
+
+    /**
+     * Fingerprint everything besides the source that affects deployed pages,
+     * so that incremental mode deploys everything when it changes.
+     */
+    private String deployConfiguration() {
+        return sha1().hashString(renderConfiguration() + "\n"
+                + diagramFormat + "\n"
+                + diagramPngFallback + "\n"
+                + optimizeImages + "\n"
+                + imageMaxDimension + "\n"
+                + deleteOrphanAttachments, UTF_8).toString();
+    }
+
+    private MarkdownEngine markdownEngine() throws MojoExecutionException {
+        try {
+            return MarkdownEngine.named(markdownEngine);
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException(ex.getMessage(), ex);
         }
+    }
 
-        if (!filenameMap.isEmpty()) {
-            confluence.createAttachments(pageId, filenameMap.values().toArray(
-                    new File[filenameMap.size()]));
+    private boolean virtualThreads() {
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            log.warn("Virtual threads need JDK 21 or later, running on {}",
+                    System.getProperty("java.version"));
+            return false;
         }
+        return virtualThreads;
+    }
 
-        // TODO: delete old attachments
+    private Transport transport() throws MojoExecutionException {
+        try {
+            return Transport.named(transport);
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException(ex.getMessage(), ex);
+        }
     }
 
     private Server getServerSettings(String id) throws MojoExecutionException {
@@ -245,96 +806,301 @@ public class DeployMojo extends AbstractMojo {
         return decrypt.getServer();
     }
 
-    private class Deployer extends SimpleFileVisitor<Path> {
+    private class Deployer implements DeployScheduler.PageDeployer {
 
-        private final PegDownProcessor pdp = new PegDownProcessor();
         private final Confluence confluence;
-        private final HashMap<Path, Page> pathMap = new HashMap<>();
+        private final PageIndex pageIndex;
+        private final DeployManifest manifest;
+        private final Fingerprints fingerprints;
+        private final PlantUml plantUml;
+        private final MarkdownEngine engine;
+        private final ImageOptimizer imageOptimizer;
+        private final Set<Path> changed;
+        private final Map<Path, ConfluencePage> converted
+                = new ConcurrentHashMap<>();
+        private final Set<Path> created = ConcurrentHashMap.newKeySet();
+        private final Set<Path> untracked = ConcurrentHashMap.newKeySet();
+        private final AttachmentSync attachmentSync;
+        private final RenderCache renderCache;
+        private final String footer = footer(scmUrl);
+        private final Metrics metrics;
+        private final boolean virtual;
 
-        private Deployer(Confluence confluence, Page topParent) {
+        /**
+         * @param confluence Confluence to deploy to
+         * @param pageIndex looks up existing pages
+         * @param manifest record of deployed pages
+         * @param fingerprints content hashes of files
+         * @param plantUml renders diagrams
+         * @param engine converts Markdown
+         * @param changed wiki dirs to deploy, null to deploy all
+         * @param metrics records stage timings
+         * @param virtual open deployed pages from virtual threads
+         */
+        private Deployer(Confluence confluence, PageIndex pageIndex,
+                DeployManifest manifest, Fingerprints fingerprints,
+                PlantUml plantUml, MarkdownEngine engine,
+                Set<Path> changed, Metrics metrics, boolean virtual) {
             this.confluence = confluence;
-            pathMap.put(srcDir.toPath(), topParent);
+            this.pageIndex = pageIndex;
+            this.manifest = manifest;
+            this.fingerprints = fingerprints;
+            this.plantUml = plantUml;
+            this.engine = engine;
+            this.imageOptimizer = optimizeImages
+                    ? new ImageOptimizer(new File(genDir, ".cpages-images"),
+                            imageMaxDimension, fingerprints)
+                    : null;
+            this.changed = changed;
+            this.metrics = metrics;
+            this.virtual = virtual;
+            this.attachmentSync = new AttachmentSync(confluence,
+                    deleteOrphanAttachments, lookupBatchSize, lookupWindow);
+            this.renderCache = new RenderCache(renderConfiguration(),
+                    fingerprints);
         }
 
         @Override
-        public FileVisitResult preVisitDirectory(Path dir,
-                BasicFileAttributes attrs) throws IOException {
-            if (dir.toFile().equals(srcDir)) {
-                // skip top directory
-                return FileVisitResult.CONTINUE;
+        public void render(Path dir) throws IOException {
+            if (changed != null && !changed.contains(dir)) {
+                if (manifest.get(manifestKey(dir)) != null) {
+                    log.debug("unchanged: {}", dir);
+                    return;
+                }
+                log.info("No deployed page recorded for unchanged {}", dir);
             }
 
-            log.info("deploy: {}", dir);
-            File[] contentFiles = dir.toFile().listFiles((file)
-                    -> file.getName().endsWith(".md"));
-            if (contentFiles.length < 1) {
-                log.error("{} has no page content", dir);
-                throw new IllegalArgumentException("No page content in " + dir);
-            } else if (contentFiles.length > 1) {
-                log.error("{} has more than one content file: {}",
-                        dir, contentFiles);
-                throw new IllegalArgumentException(
-                        "More than one content file in " + dir);
-            }
-            File contentFile = contentFiles[0];
+            log.info("render: {}", dir);
+            File contentFile = contentFile(dir);
             File outputDir = outputDir(contentFile.toPath().getParent());
-            PlantUml.generate(dir, outputDir);
-
-            ConfluencePage cPage = convert(contentFile.toPath());
-            Page deployedPage = deploy(cPage, pathMap.get(dir.getParent()));
-            pathMap.put(dir, deployedPage);
+            String title = dir.getFileName().toString();
+            Map<String, File> diagrams = new HashMap<>();
+            long start = System.nanoTime();
+            for (File image : plantUml.generate(dir, outputDir)) {
+                diagrams.put(PlantUml.referenceName(image), image);
+            }
+            metrics.recordStage("plantuml", title, start);
 
-            return FileVisitResult.CONTINUE;
+            String markdownSource = new String(
+                    Files.readAllBytes(contentFile.toPath()),
+                    StandardCharsets.UTF_8);
+            String key = renderCache.key(markdownSource, diagrams);
+            ConfluencePage cPage = renderCache.get(outputDir, key, title);
+            if (cPage == null) {
+                renderCache.remove(outputDir);
+                cPage = convert(contentFile.toPath(), markdownSource,
+                        diagrams);
+                renderCache.put(outputDir, key, cPage);
+            } else {
+                log.info("Reusing rendered {}", title);
+            }
+            manifest.setInputs(manifestKey(dir), inputs(dir, cPage));
+            converted.put(dir, optimize(cPage));
         }
 
-        private ConfluencePage convert(Path markdownFile) throws IOException {
-            String markdownSource = new String(Files.readAllBytes(markdownFile),
-                    StandardCharsets.UTF_8);
-            RootNode root = pdp.parseMarkdown(markdownSource.toCharArray());
-            ConfluenceStorageSerializer css = new ConfluenceStorageSerializer(
-                    outputDir(markdownFile.getParent()));
+        @Override
+        public PageHandle deployPage(Path dir, PageHandle parentPage) {
+            ConfluencePage cPage = converted.get(dir);
+            if (cPage == null) {
+                // not rendered in incremental mode
+                return new PageHandle(
+                        manifest.get(manifestKey(dir)).getPageId());
+            }
 
-            String contents = css.toHtml(root);
-            List<File> attachments = css.getAttachments();
-            String title = markdownFile.getParent().getFileName().toString();
-            return new ConfluencePage(title, contents, attachments);
+            long start = System.nanoTime();
+            try {
+                return deploy(dir, cPage, parentPage);
+            } finally {
+                metrics.recordStage("page", cPage.getTitle(), start);
+            }
         }
 
-        private Page deploy(ConfluencePage page, Page parentPage) throws
-                IOException {
-            List<File> attachments = page.getAttachments();
-            Page cPage = confluence.getPage(spaceKey, page.getTitle());
-            String contents = page.getContents() + footer();
-
+        @Override
+        public void deployAttachments(Path dir, PageHandle page)
+                throws IOException {
+            ConfluencePage cPage = converted.remove(dir);
             if (cPage == null) {
-                log.info("Creating {}", page.getTitle());
-                if (parentPage == null) {
-                    cPage = confluence.createPage(spaceKey, page.getTitle(),
-                            contents);
-                } else {
-                    cPage = confluence.createChildPage(spaceKey,
-                            parentPage.getId(),
-                            page.getTitle(),
-                            contents);
+                // not deployed in incremental mode
+                return;
+            }
+
+            // attachments are named after their file, so a file reached
+            // by more than one path or copied is attached once
+            Map<File, String> files = new LinkedHashMap<>();
+            Map<String, String> hashes = new HashMap<>();
+            Map<String, File> named = new HashMap<>();
+            for (File attachment : cPage.getAttachments()) {
+                String name = attachment.getName();
+                String hash = fingerprints.hash(attachment);
+                String known = hashes.putIfAbsent(name, hash);
+                if (known == null) {
+                    files.put(attachment, hash);
+                    named.put(name, attachment);
+                } else if (!known.equals(hash)) {
+                    log.error("{} and {} are both attached to {} as {}",
+                            named.get(name), attachment, cPage.getTitle(),
+                            name);
+                    throw new IllegalArgumentException("Different files"
+                            + " attached as " + name + " to "
+                            + cPage.getTitle() + ": " + named.get(name)
+                            + " and " + attachment);
                 }
+            }
 
-                if (!attachments.isEmpty()) {
-                    confluence.createAttachments(cPage.getId(),
-                            attachments.toArray(new File[attachments.size()]));
+            String key = manifestKey(dir);
+            DeployManifest.Entry entry = manifest.get(key);
+            boolean newPage = created.remove(dir);
+            if (!untracked.remove(dir)
+                    && hashes.equals(entry.getAttachments())) {
+                if (!hashes.isEmpty()) {
+                    log.info("No changes to attachments of {}",
+                            entry.getTitle());
                 }
-            } else {
+                return;
+            }
+
+            long start = System.nanoTime();
+            attachmentSync.sync(page.getId(), files, newPage);
+            metrics.recordStage("attachments", entry.getTitle(), start);
+            manifest.put(key, entry.withAttachments(hashes));
+        }
+
+        private ConfluencePage convert(Path markdownFile,
+                String markdownSource, Map<String, File> diagrams)
+                throws IOException {
+            ImageAttachments images = new ImageAttachments(
+                    outputDir(markdownFile.getParent()),
+                    markdownFile.getParent().toFile(), diagrams);
+
+            String title = markdownFile.getParent().getFileName().toString();
+            long convertStart = System.nanoTime();
+            MarkdownEngine.Document document = engine.parse(markdownSource);
+            metrics.recordStage("parse", title, convertStart);
+
+            // large pages go to disk as they are converted and are streamed
+            // from there when deployed
+            long start = System.nanoTime();
+            StorageBody body;
+            try (StorageBody.Output out = new StorageBody.Output(new File(
+                    outputDir(markdownFile.getParent()), BODY_FILE))) {
+                document.toStorage(images, out);
+                out.write(footer);
+                body = out.toBody();
+            }
+            metrics.recordStage("render", title, start);
+            metrics.getTrace().record("convert", "stage", "page", title,
+                    convertStart, System.nanoTime());
+            return new ConfluencePage(title, body, images.getAttachments());
+        }
+
+        /**
+         * Replace the attachments of a page with their optimized versions.
+         */
+        private ConfluencePage optimize(ConfluencePage page)
+                throws IOException {
+            if (imageOptimizer == null) {
+                return page;
+            }
+
+            List<File> optimized = new ArrayList<>();
+            for (File attachment : page.getAttachments()) {
+                optimized.add(imageOptimizer.optimize(attachment));
+            }
+            return new ConfluencePage(page.getTitle(), page.getBody(),
+                    optimized);
+        }
+
+        private PageHandle deploy(Path dir, ConfluencePage page,
+                PageHandle parentPage) {
+            StorageBody contents = page.getBody();
+            String hash = contents.getHash();
+            String parentId = parentPage == null ? null : parentPage.getId();
+            String key = manifestKey(dir);
+            DeployManifest.Entry entry = manifest.get(key);
+
+            if (entry != null
+                    && hash.equals(entry.getBodyHash())
+                    && page.getTitle().equals(entry.getTitle())
+                    && Objects.equals(parentId, entry.getParentId())) {
+                log.info("No changes to {}", page.getTitle());
+                return new PageHandle(entry.getPageId());
+            }
+
+            // only what later stages need is kept of the deployed page
+            PageHandle shown = null;
+            PageHandle deployed = null;
+            if (entry != null) {
                 log.info("Updating {}", page.getTitle());
-                confluence.updatePage(cPage, contents);
+                Page recorded = new Page(spaceKey, parentId, page.getTitle(),
+                        null, "storage");
+                recorded.setId(entry.getPageId());
+                recorded.setVersion(new Version(entry.getVersion()));
+                try {
+                    deployed = confluence.updatePage(recorded, contents);
+                    shown = deployed;
+                } catch (ClientErrorException ex) {
+                    log.info("{} changed since last deploy: {}",
+                            page.getTitle(), ex.getMessage());
+                }
+            }
 
-                if (!attachments.isEmpty()) {
-                    updateAttachments(confluence, cPage.getId(), attachments);
+            if (deployed == null) {
+                // refetch a page whose recorded version failed to update
+                Page cPage = entry == null
+                        ? pageIndex.get(page.getTitle())
+                        : confluence.getPage(spaceKey, page.getTitle());
+                if (cPage == null) {
+                    log.info("Creating {}", page.getTitle());
+                    try {
+                        if (parentPage == null) {
+                            deployed = confluence.createPage(spaceKey,
+                                    page.getTitle(), contents);
+                        } else {
+                            deployed = confluence.createChildPage(spaceKey,
+                                    parentPage.getId(),
+                                    page.getTitle(),
+                                    contents);
+                        }
+                        shown = deployed;
+                        created.add(dir);
+                    } catch (ClientErrorException ex) {
+                        // the search index lags behind changes, so the
+                        // lookup may have missed a page with this title
+                        cPage = confluence.getPage(spaceKey, page.getTitle());
+                        if (cPage == null) {
+                            throw ex;
+                        }
+                        log.info("{} already exists: {}", page.getTitle(),
+                                ex.getMessage());
+                    }
+                }
+                if (cPage != null) {
+                    log.info("Updating {}", page.getTitle());
+                    shown = new PageHandle(cPage);
+                    deployed = confluence.updatePage(cPage, contents);
+                    if (entry == null) {
+                        // attachments were not deployed from here before
+                        untracked.add(dir);
+                    }
                 }
             }
 
-            Thread viewer = new Thread(new ShowDeployed(cPage));
-            viewer.start();
-            viewers.add(viewer);
-            return cPage;
+            Map<String, String> attachments = entry == null
+                    || created.contains(dir)
+                    ? new HashMap<>()
+                    : entry.getAttachments();
+            manifest.put(key, new DeployManifest.Entry(deployed.getId(),
+                    deployed.getVersion().getNumber(), parentId,
+                    page.getTitle(), hash, attachments));
+
+            if (shown.get_links() != null) {
+                Thread viewer = virtual
+                        ? VirtualThreads.newThread(new ShowDeployed(shown))
+                        : new Thread(new ShowDeployed(shown));
+                viewer.start();
+                viewers.add(viewer);
+            }
+            return deployed;
         }
     }
 
@@ -342,7 +1108,7 @@ public class DeployMojo extends AbstractMojo {
 
         private final String pageUrl;
 
-        public ShowDeployed(Page page) {
+        public ShowDeployed(PageHandle page) {
             pageUrl = page.get_links().getBase() + page.get_links().getWebui();
         }
 
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+
+/**
+ * Deploys a tree of wiki dirs as a pipeline of stages, each on its own
+ * bounded pool.
+ *
+ * Wiki dirs are rendered as soon as they are scanned, independent of each
+ * other. The page of a wiki dir is reconciled with Confluence once it is
+ * rendered and its parent page is deployed, and its attachments are uploaded
+ * once the page is deployed. Sibling subtrees proceed concurrently, and
+ * rendering overlaps with network traffic. The number of wiki dirs in the
+ * pipeline at once is bounded so memory use does not grow with the tree.
+ *
+ * On JDK 21 and later, the network stages can run each task on a virtual
+ * thread instead, with a semaphore bounding how many run at once. Blocking
+ * requests then cost no platform thread while they wait.
+ */
+class DeployScheduler {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(DeployScheduler.class);
+
+    /**
+     * Deploys a single wiki dir.
+     */
+    interface PageDeployer {
+
+        /**
+         * Render the content of a wiki dir. This is called before the parent
+         * page is deployed and should not contact Confluence.
+         *
+         * @param dir wiki dir
+         * @throws IOException if the content cannot be rendered
+         */
+        void render(Path dir) throws IOException;
+
+        /**
+         * Deploy the page content of a rendered wiki dir.
+         *
+         * @param dir wiki dir
+         * @param parent deployed parent page, null for top level pages
+         * @return the deployed page
+         * @throws IOException if the page cannot be deployed
+         */
+        PageHandle deployPage(Path dir, PageHandle parent) throws IOException;
+
+        /**
+         * Deploy the attachments of a wiki dir whose page has been deployed.
+         *
+         * @param dir wiki dir
+         * @param page deployed page
+         * @throws IOException if the attachments cannot be deployed
+         */
+        void deployAttachments(Path dir, PageHandle page) throws IOException;
+    }
+
+    private interface IOCall<T> {
+
+        T call() throws IOException;
+    }
+
+    /**
+     * A bounded pool that keeps track of how long its threads are busy.
+     */
+    private static class Stage implements Executor {
+
+        private final String name;
+        private final int threads;
+        private final ExecutorService pool;
+        private final Semaphore running;
+        private final AtomicLong busy = new AtomicLong();
+        private final AtomicInteger tasks = new AtomicInteger();
+
+        /**
+         * @param name stage name
+         * @param threads maximum number of tasks running at once
+         * @param virtual run each task on a virtual thread
+         */
+        Stage(String name, int threads, boolean virtual) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(
+                        name + " threads must be at least 1");
+            }
+            this.name = name;
+            this.threads = threads;
+            if (virtual) {
+                this.pool = VirtualThreads.newExecutor();
+                this.running = new Semaphore(threads);
+            } else {
+                this.pool = Executors.newFixedThreadPool(threads);
+                this.running = null;
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            pool.execute(() -> {
+                if (running != null) {
+                    try {
+                        running.acquire();
+                    } catch (InterruptedException ex) {
+                        // shut down
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    busy.addAndGet(System.nanoTime() - start);
+                    tasks.incrementAndGet();
+                    if (running != null) {
+                        running.release();
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            pool.shutdownNow();
+        }
+
+        void report(long elapsed) {
+            log.info(String.format("%-9s %4d tasks on %2d %s, "
+                    + "busy %6d ms, %3.0f%% utilized",
+                    name, tasks.get(), threads,
+                    running == null ? "threads" : "virtual threads",
+                    TimeUnit.NANOSECONDS.toMillis(busy.get()),
+                    elapsed == 0 ? 0.0
+                            : 100.0 * busy.get() / elapsed / threads));
+        }
+    }
+
+    private final int renderThreads;
+    private final int threads;
+    private final int depth;
+    private final boolean virtual;
+
+    /**
+     * @param renderThreads size of the rendering pool
+     * @param threads size of each of the network pools
+     * @param depth maximum number of wiki dirs in the pipeline at once
+     * @param virtual run network tasks on virtual threads, which must be
+     * {@link VirtualThreads#isAvailable() available}
+     */
+    DeployScheduler(int renderThreads, int threads, int depth,
+            boolean virtual) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        this.renderThreads = renderThreads;
+        this.threads = threads;
+        this.depth = depth;
+        this.virtual = virtual;
+    }
+
+    /**
+     * Deploy the given wiki dirs.
+     *
+     * @param topDir directory containing the top level wiki dirs
+     * @param wikiDirs wiki dirs, each listed after its parent
+     * @param topParent parent of the top level pages, may be null
+     * @param deployer deploys individual wiki dirs
+     * @throws IOException if any page failed to deploy
+     */
+    void deploy(Path topDir, List<Path> wikiDirs, PageHandle topParent,
+            PageDeployer deployer) throws IOException {
+        // rendering is bound by CPU, so gains nothing from virtual threads
+        Stage render = new Stage("render", renderThreads, false);
+        Stage reconcile = new Stage("reconcile", threads, virtual);
+        Stage upload = new Stage("upload", threads, virtual);
+        Semaphore inPipeline = new Semaphore(depth);
+        Map<Path, CompletableFuture<PageHandle>> pages = new HashMap<>();
+        List<CompletableFuture<?>> tasks = new ArrayList<>();
+        pages.put(topDir, CompletableFuture.completedFuture(topParent));
+        long start = System.nanoTime();
+
+        try {
+            for (Path dir : wikiDirs) {
+                CompletableFuture<PageHandle> parent
+                        = pages.get(dir.getParent());
+                if (parent == null) {
+                    throw new IllegalArgumentException(
+                            "Parent not scheduled before " + dir);
+                }
+
+                // wiki dirs are listed after their parents, so the ones
+                // holding permits never wait on this one
+                inPipeline.acquireUninterruptibly();
+                CompletableFuture<Void> rendered = CompletableFuture.runAsync(
+                        () -> call(dir, () -> {
+                            deployer.render(dir);
+                            return null;
+                        }),
+                        render);
+                CompletableFuture<PageHandle> page = parent.thenCombineAsync(
+                        rendered,
+                        (p, r) -> call(dir, () -> deployer.deployPage(dir, p)),
+                        reconcile);
+                CompletableFuture<Void> attachments = page.thenAcceptAsync(
+                        p -> call(dir, () -> {
+                            deployer.deployAttachments(dir, p);
+                            return null;
+                        }),
+                        upload);
+                attachments.whenComplete((r, ex) -> inPipeline.release());
+                pages.put(dir, page);
+                tasks.add(attachments);
+            }
+
+            CompletableFuture.allOf(
+                    tasks.toArray(new CompletableFuture<?>[tasks.size()]))
+                    .join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            render.shutdown();
+            reconcile.shutdown();
+            upload.shutdown();
+
+            long elapsed = System.nanoTime() - start;
+            log.info("Deployed {} wiki dirs in {} ms", wikiDirs.size(),
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+            render.report(elapsed);
+            reconcile.report(elapsed);
+            upload.report(elapsed);
+        }
+    }
+
+    /**
+     * Run a deploy step, logging failures once at their origin. Dependent
+     * steps fail with the same cause without being run.
+     */
+    private static <T> T call(Path dir, IOCall<T> call) {
+        try {
+            return call.call();
+        } catch (IOException ex) {
+            log.error("Failed deploying {}", dir, ex);
+            throw new UncheckedIOException(ex);
+        } catch (RuntimeException ex) {
+            log.error("Failed deploying {}", dir, ex);
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.google.common.hash.Hasher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.version.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.hash.Hashing.sha1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rendered diagrams stored by the hash of everything that affects them.
+ *
+ * The key covers the diagram source, the content of every file it includes,
+ * the PlantUML version and the output format. Entries are directories named
+ * after their key, so the cache can be shared by several projects and builds.
+ * The least recently used entries are deleted once the cache grows beyond
+ * its size limit.
+ */
+class DiagramCache {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(DiagramCache.class);
+
+    private static final Pattern INCLUDE
+            = Pattern.compile("^\\s*!include\\s+(.+?)\\s*$");
+    private static final Pattern INCLUDE_URL
+            = Pattern.compile("^\\s*!includeurl\\s");
+
+    /**
+     * Milliseconds after which an entry that is still being stored is taken
+     * to be left over from a build that did not finish.
+     */
+    private static final long ABANDONED = TimeUnit.HOURS.toMillis(1);
+
+    private final Path dir;
+    private final long maxSize;
+
+    /**
+     * @param dir cache directory, need not exist
+     * @param maxSize size in bytes beyond which entries are evicted
+     */
+    DiagramCache(File dir, long maxSize) {
+        this.dir = dir.toPath();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Compute the cache key of a diagram.
+     *
+     * @param source diagram source
+     * @param format output format
+     * @return cache key, null if the diagram cannot be cached because it
+     * includes remote content
+     * @throws IOException if the source cannot be read
+     */
+    String key(File source, FileFormat format) throws IOException {
+        Hasher hasher = sha1().newHasher()
+                .putString(Version.versionString(), UTF_8)
+                .putString(format.name(), UTF_8)
+                // image file names are derived from the source file name
+                .putString(source.getName(), UTF_8);
+        if (!hashSource(source, hasher, new HashSet<>())) {
+            return null;
+        }
+        return hasher.hash().toString();
+    }
+
+    private boolean hashSource(File source, Hasher hasher, Set<File> seen)
+            throws IOException {
+        if (!seen.add(source.getCanonicalFile())) {
+            return true;
+        }
+
+        List<String> lines = Files.readAllLines(source.toPath(), UTF_8);
+        for (String line : lines) {
+            hasher.putString(line, UTF_8).putChar('\n');
+            if (INCLUDE_URL.matcher(line).find()) {
+                return false;
+            }
+
+            Matcher include = INCLUDE.matcher(line);
+            if (include.matches()) {
+                File included = included(source, include);
+                if (included.isFile()) {
+                    if (!hashSource(included, hasher, seen)) {
+                        return false;
+                    }
+                } else {
+                    hasher.putString("missing " + included.getPath(), UTF_8);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * List the local files a diagram includes, directly or through other
+     * included files.
+     *
+     * @param source diagram source
+     * @return included files that exist
+     * @throws IOException if a source cannot be read
+     */
+    static Set<File> includes(File source) throws IOException {
+        Set<File> includes = new LinkedHashSet<>();
+        addIncludes(source, includes, new HashSet<>());
+        return includes;
+    }
+
+    private static void addIncludes(File source, Set<File> includes,
+            Set<File> seen) throws IOException {
+        if (!seen.add(source.getCanonicalFile())) {
+            return;
+        }
+
+        for (String line : Files.readAllLines(source.toPath(), UTF_8)) {
+            Matcher include = INCLUDE.matcher(line);
+            if (include.matches()) {
+                File included = included(source, include);
+                if (included.isFile()) {
+                    includes.add(included);
+                    addIncludes(included, includes, seen);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param source diagram source
+     * @param include matched include line
+     * @return the included file, relative to the source if it exists there,
+     * otherwise as named
+     */
+    private static File included(File source, Matcher include) {
+        // "!include file!2" picks a diagram out of a file
+        String name = include.group(1).replaceFirst("!\\d+$", "");
+        File included = new File(source.getParentFile(), name);
+        return included.isFile() ? included : new File(name);
+    }
+
+    /**
+     * Copy the cached images of a diagram to the output directory.
+     *
+     * @param key cache key
+     * @param outputDir directory to copy images to
+     * @return copied images, null if the diagram is not cached
+     */
+    List<File> get(String key, File outputDir) {
+        Path entry = dir.resolve(key);
+        if (!Files.isDirectory(entry)) {
+            return null;
+        }
+
+        try {
+            List<File> images = new ArrayList<>();
+            Files.createDirectories(outputDir.toPath());
+            try (Stream<Path> cached = Files.list(entry)) {
+                for (Path image : (Iterable<Path>) cached::iterator) {
+                    Path copy = outputDir.toPath().resolve(
+                            image.getFileName().toString());
+                    // keep the cached modification time so the copy's
+                    // fingerprint stays valid
+                    Files.copy(image, copy,
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.COPY_ATTRIBUTES);
+                    images.add(copy.toFile());
+                }
+            }
+            Files.setLastModifiedTime(entry,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+            return images;
+        } catch (IOException ex) {
+            // possibly evicted by another build meanwhile
+            log.debug("Cannot read cached diagram {}", entry, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store the rendered images of a diagram.
+     *
+     * @param key cache key
+     * @param images rendered images
+     */
+    void put(String key, List<File> images) {
+        Path entry = dir.resolve(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(dir);
+            temp = Files.createTempDirectory(dir, key + ".");
+            for (File image : images) {
+                Files.copy(image.toPath(), temp.resolve(image.getName()));
+            }
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (FileAlreadyExistsException ex) {
+            log.debug("Diagram {} already cached", key);
+        } catch (IOException ex) {
+            if (Files.isDirectory(entry)) {
+                // stored by another build meanwhile
+                log.debug("Diagram {} already cached", key);
+            } else {
+                log.warn("Cannot cache diagram in {}", entry, ex);
+            }
+        } finally {
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits its size
+     * limit. Entries still being stored by other builds are left alone,
+     * unless they were abandoned long ago.
+     */
+    void evict() {
+        File[] all = dir.toFile().listFiles(File::isDirectory);
+        if (all == null) {
+            return;
+        }
+
+        List<File> stored = new ArrayList<>();
+        for (File entry : all) {
+            if (!isTemp(entry)) {
+                stored.add(entry);
+            } else if (System.currentTimeMillis() - entry.lastModified()
+                    > ABANDONED) {
+                log.debug("Deleting abandoned {}", entry);
+                delete(entry.toPath());
+            }
+        }
+        File[] entries = stored.toArray(new File[stored.size()]);
+
+        long size = 0;
+        for (File entry : entries) {
+            size += size(entry);
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        int evicted = 0;
+        for (File entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            size -= size(entry);
+            delete(entry.toPath());
+            evicted++;
+        }
+        log.info("Evicted {} diagrams from {}", evicted, dir);
+    }
+
+    /**
+     * @return whether the entry is a temporary directory created by
+     * {@link #put(String, List)}, named after the key and a random suffix
+     */
+    private static boolean isTemp(File entry) {
+        return entry.getName().indexOf('.') >= 0;
+    }
+
+    private static long size(File entry) {
+        long size = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void delete(Path entry) {
+        File[] files = entry.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        entry.toFile().delete();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.cedarsoftware.util.io.JsonIoException;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.hash.Hashing.sha1;
+
+/**
+ * Content hashes of files, remembered across runs.
+ *
+ * A file is only read again when its size or modification time differs from
+ * when it was last hashed. Files are hashed as a stream so large attachments
+ * are never held in memory.
+ */
+class Fingerprints {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(Fingerprints.class);
+
+    private static class Fingerprint {
+
+        private final long size;
+        private final long modified;
+        private final String hash;
+
+        Fingerprint(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Fingerprint> known = new ConcurrentHashMap<>();
+
+    private Fingerprints(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load fingerprints from the given file.
+     *
+     * @param file fingerprint file, need not exist
+     * @return the loaded fingerprints, empty if the file does not exist or
+     * cannot be read
+     */
+    static Fingerprints load(File file) {
+        Fingerprints fingerprints = new Fingerprints(file);
+        if (!file.isFile()) {
+            return fingerprints;
+        }
+
+        try {
+            Map<?, ?> json = JsonFiles.read(file);
+            for (Map.Entry<?, ?> entry : json.entrySet()) {
+                Map<?, ?> value = (Map<?, ?>) entry.getValue();
+                fingerprints.known.put((String) entry.getKey(),
+                        new Fingerprint(
+                                ((Number) value.get("size")).longValue(),
+                                ((Number) value.get("modified")).longValue(),
+                                (String) value.get("hash")));
+            }
+        } catch (IOException | JsonIoException | ClassCastException
+                | NullPointerException ex) {
+            log.warn("Ignoring unreadable fingerprints {}", file, ex);
+            fingerprints.known.clear();
+        }
+
+        return fingerprints;
+    }
+
+    /**
+     * Get the SHA-1 hash of a file's content.
+     *
+     * @param target file to hash
+     * @return hex encoded hash
+     * @throws IOException if the file cannot be read
+     */
+    String hash(File target) throws IOException {
+        String key = target.getAbsolutePath();
+        long size = target.length();
+        long modified = target.lastModified();
+
+        Fingerprint fingerprint = known.get(key);
+        if (fingerprint == null
+                || fingerprint.size != size
+                || fingerprint.modified != modified) {
+            log.debug("hashing {}", target);
+            fingerprint = new Fingerprint(size, modified,
+                    com.google.common.io.Files.hash(target, sha1())
+                    .toString());
+            known.put(key, fingerprint);
+        }
+        return fingerprint.hash;
+    }
+
+    /**
+     * Save the fingerprints of files that still exist.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        Map<String, Object> json = new TreeMap<>();
+        for (Map.Entry<String, Fingerprint> entry : known.entrySet()) {
+            if (!new File(entry.getKey()).isFile()) {
+                continue;
+            }
+            Fingerprint f = entry.getValue();
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("size", f.size);
+            value.put("modified", f.modified);
+            value.put("hash", f.hash);
+            json.put(entry.getKey(), value);
+        }
+
+        JsonFiles.write(file, json, true);
+    }
+}
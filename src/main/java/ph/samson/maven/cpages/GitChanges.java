@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Asks git which files have changed.
+ */
+class GitChanges {
+
+    private static final Logger log = LoggerFactory.getLogger(GitChanges.class);
+
+    private final Path workDir;
+
+    /**
+     * @param workDir directory inside a git work tree
+     */
+    GitChanges(Path workDir) {
+        this.workDir = workDir;
+    }
+
+    /**
+     * @return the commit currently checked out
+     * @throws IOException if git fails
+     */
+    String head() throws IOException {
+        return git("rev-parse", "--verify", "HEAD").get(0);
+    }
+
+    /**
+     * @return whether the work tree has no uncommitted changes or untracked
+     * files
+     * @throws IOException if git fails
+     */
+    boolean isClean() throws IOException {
+        return git("status", "--porcelain").isEmpty();
+    }
+
+    /**
+     * List the files of the whole work tree that differ from the given
+     * revision, so files shared from outside the work directory are seen
+     * too. This includes uncommitted changes and untracked files.
+     *
+     * @param revision git revision to compare against
+     * @return paths of changed, added and deleted files, resolved against
+     * the work directory
+     * @throws IOException if git fails, such as when the revision is unknown
+     */
+    Set<Path> changedSince(String revision) throws IOException {
+        // empty at the top of the work tree
+        List<String> up = git("rev-parse", "--show-cdup");
+        Path top = up.isEmpty() ? workDir
+                : workDir.resolve(up.get(0)).normalize();
+
+        Set<Path> changed = new HashSet<>();
+        for (String file : git("diff", "--name-only", "--no-renames",
+                revision)) {
+            changed.add(top.resolve(file));
+        }
+        for (String file : git("ls-files", "--others", "--exclude-standard",
+                "--full-name", ":/")) {
+            changed.add(top.resolve(file));
+        }
+        log.debug("changed since {}: {}", revision, changed);
+        return changed;
+    }
+
+    private List<String> git(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.addAll(Arrays.asList("git", "-c", "core.quotePath=false"));
+        command.addAll(Arrays.asList(args));
+        // kept out of the build output, and reported if git fails
+        File errors = File.createTempFile("cpages-git", ".err");
+        try {
+            Process git = new ProcessBuilder(command)
+                    .directory(workDir.toFile())
+                    .redirectError(errors)
+                    .start();
+
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader out = new BufferedReader(
+                    new InputStreamReader(git.getInputStream(), UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        lines.add(line);
+                    }
+                }
+            }
+
+            try {
+                int exit = git.waitFor();
+                if (exit != 0) {
+                    throw new IOException(command + " exited with " + exit
+                            + ": " + new String(Files.readAllBytes(
+                                    errors.toPath()), UTF_8).trim());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(command + " interrupted", ex);
+            }
+            return lines;
+        } finally {
+            Files.deleteIfExists(errors.toPath());
+        }
+    }
+}
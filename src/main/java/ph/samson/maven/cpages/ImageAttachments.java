@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the images of a page to the files attached to it.
+ *
+ * Rendered diagrams are looked up by the PNG name they are referenced with,
+ * then other images in the attachments directory, then in the source
+ * directory.
+ */
+public class ImageAttachments {
+
+    private final File attachmentsDirectory;
+    private final File sourceDirectory;
+    private final Map<String, File> diagrams;
+    private final List<File> attachments = new ArrayList<>();
+
+    public ImageAttachments(File attachmentsDirectory) {
+        this(attachmentsDirectory, attachmentsDirectory,
+                Collections.emptyMap());
+    }
+
+    /**
+     * @param attachmentsDirectory directory of generated images
+     * @param sourceDirectory directory of images that are not generated,
+     * used for images not found in the attachments directory
+     * @param diagrams rendered diagrams by the PNG name they are referenced
+     * with, which may differ from their own name if rendered as SVG
+     */
+    public ImageAttachments(File attachmentsDirectory, File sourceDirectory,
+            Map<String, File> diagrams) {
+        this.attachmentsDirectory = attachmentsDirectory;
+        this.sourceDirectory = sourceDirectory;
+        this.diagrams = diagrams;
+    }
+
+    /**
+     * Attach the image at the given location.
+     *
+     * @param href image location as written in Markdown
+     * @return file name of the attachment
+     * @throws IllegalArgumentException if the image cannot be read
+     */
+    public String attach(String href) {
+        File attachment = diagrams.get(href);
+        if (attachment == null) {
+            attachment = new File(attachmentsDirectory, href);
+        }
+        if (!attachment.canRead()) {
+            attachment = new File(sourceDirectory, href);
+        }
+        if (!attachment.canRead()) {
+            throw new IllegalArgumentException("Cannot read attachment: "
+                    + attachment);
+        }
+
+        if (!attachments.contains(attachment)) {
+            attachments.add(attachment);
+        }
+        return diagrams.containsKey(href) ? attachment.getName() : href;
+    }
+
+    /**
+     * @param href image location as written in Markdown
+     * @return whether the image is on the web rather than attached
+     */
+    public static boolean isUrl(String href) {
+        return href.startsWith("http://") || href.startsWith("https://");
+    }
+
+    /**
+     * @return attached files, in the order they were first referenced
+     */
+    public List<File> getAttachments() {
+        return attachments;
+    }
+}
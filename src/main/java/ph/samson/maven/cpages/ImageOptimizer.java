@@ -0,0 +1,473 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.google.common.io.ByteStreams;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Shrinks PNG and JPEG attachments before upload.
+ *
+ * Metadata such as text, timestamps and EXIF data is removed, except for the
+ * EXIF orientation of a JPEG, which says how it is displayed. PNGs larger
+ * than the maximum dimension are scaled down, others are re-encoded
+ * losslessly, and either way the stripped original is kept if that is still
+ * smaller. JPEGs are only re-encoded when scaled down, keeping their ICC
+ * profile. Results are cached by the hash of the
+ * input so unchanged images are not processed again.
+ */
+class ImageOptimizer {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(ImageOptimizer.class);
+
+    private static final byte[] PNG_SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /**
+     * PNG chunks kept when stripping metadata. Besides the critical chunks,
+     * these affect how the image looks.
+     */
+    private static final Set<String> PNG_KEEP = new HashSet<>(Arrays.asList(
+            "IHDR", "PLTE", "IDAT", "IEND",
+            "tRNS", "gAMA", "cHRM", "sRGB", "iCCP", "sBIT", "bKGD"));
+
+    private static final float JPEG_QUALITY = 0.9f;
+
+    /**
+     * EXIF tag of the orientation, and the value of an upright image.
+     */
+    private static final int ORIENTATION_TAG = 0x0112;
+    private static final int UPRIGHT = 1;
+
+    private final File cacheDir;
+    private final int maxDimension;
+    private final Fingerprints fingerprints;
+
+    /**
+     * @param cacheDir directory to keep optimized images in
+     * @param maxDimension maximum width and height in pixels, 0 for no limit
+     * @param fingerprints content hashes of input images
+     */
+    ImageOptimizer(File cacheDir, int maxDimension,
+            Fingerprints fingerprints) {
+        this.cacheDir = cacheDir;
+        this.maxDimension = maxDimension;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * Get the optimized version of an image.
+     *
+     * @param image image to optimize
+     * @return optimized image with the same file name, or the given file if
+     * it is not a PNG or JPEG image
+     * @throws IOException if the image cannot be read or the result cannot be
+     * written
+     */
+    File optimize(File image) throws IOException {
+        String name = image.getName();
+        String ext = name.substring(name.lastIndexOf('.') + 1)
+                .toLowerCase(Locale.ROOT);
+        boolean png = ext.equals("png");
+        boolean jpeg = ext.equals("jpg") || ext.equals("jpeg");
+        if (!png && !jpeg) {
+            return image;
+        }
+
+        Path entry = cacheDir.toPath().resolve(
+                fingerprints.hash(image) + "-" + maxDimension);
+        Path optimized = entry.resolve(name);
+        if (Files.isRegularFile(optimized)) {
+            return optimized.toFile();
+        }
+
+        byte[] original = Files.readAllBytes(image.toPath());
+        byte[] result;
+        try {
+            result = png ? optimizePng(original) : optimizeJpeg(original);
+        } catch (IOException ex) {
+            // such as a JPEG in a color space ImageIO cannot decode
+            log.debug("Cannot decode {}", image, ex);
+            result = null;
+        }
+        if (result == null) {
+            log.warn("Cannot optimize {}, uploading as is", image);
+            return image;
+        }
+        log.info("optimized {}: {} -> {} bytes", image, original.length,
+                result.length);
+
+        Files.createDirectories(entry);
+        Path temp = Files.createTempFile(entry, name, ".tmp");
+        try {
+            Files.write(temp, result);
+            Files.move(temp, optimized, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return optimized.toFile();
+    }
+
+    private byte[] optimizePng(byte[] original) throws IOException {
+        byte[] stripped = stripPng(original);
+        if (stripped == null) {
+            return null;
+        }
+
+        BufferedImage decoded = ImageIO.read(
+                new ByteArrayInputStream(original));
+        if (decoded == null) {
+            return stripped;
+        }
+        BufferedImage scaled = scale(decoded);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        if (!ImageIO.write(scaled, "png", encoded)
+                || encoded.size() >= stripped.length) {
+            // re-encoding, even when scaled, can make a palette image or
+            // one that was compressed better larger
+            return stripped;
+        }
+        return encoded.toByteArray();
+    }
+
+    private byte[] optimizeJpeg(byte[] original) throws IOException {
+        BufferedImage decoded;
+        try (ImageInputStream in = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(original))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                if (fits(reader.getWidth(0), reader.getHeight(0))) {
+                    // not re-encoded, as that would lose quality
+                    return stripJpeg(original);
+                }
+                decoded = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        BufferedImage scaled = scale(decoded);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "jpeg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(
+                encoded)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(scaled, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return withSegments(encoded.toByteArray(), carriedSegments(original));
+    }
+
+    private boolean fits(int width, int height) {
+        return maxDimension <= 0
+                || (width <= maxDimension && height <= maxDimension);
+    }
+
+    /**
+     * Scale an image down to fit the maximum dimension. The scaled image has
+     * the color model of the original, so a palette or grayscale image stays
+     * one and the pixels of a JPEG stay in the color space of its profile.
+     *
+     * @return the scaled image, or the given image if it already fits
+     */
+    private BufferedImage scale(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (fits(width, height)) {
+            return image;
+        }
+
+        double factor = (double) maxDimension / Math.max(width, height);
+        int scaledWidth = Math.max(1, (int) Math.round(width * factor));
+        int scaledHeight = Math.max(1, (int) Math.round(height * factor));
+        ColorModel model = image.getColorModel();
+        BufferedImage scaled = new BufferedImage(model,
+                model.createCompatibleWritableRaster(scaledWidth,
+                        scaledHeight),
+                model.isAlphaPremultiplied(), null);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                    RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Remove metadata chunks from a PNG.
+     *
+     * @return the stripped PNG, null if the data is not a PNG
+     */
+    private static byte[] stripPng(byte[] png) throws IOException {
+        if (png.length < PNG_SIGNATURE.length || !Arrays.equals(PNG_SIGNATURE,
+                Arrays.copyOf(png, PNG_SIGNATURE.length))) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(png.length);
+        out.write(PNG_SIGNATURE);
+        int pos = PNG_SIGNATURE.length;
+        while (pos + 8 <= png.length) {
+            int length = ((png[pos] & 0xff) << 24)
+                    | ((png[pos + 1] & 0xff) << 16)
+                    | ((png[pos + 2] & 0xff) << 8)
+                    | (png[pos + 3] & 0xff);
+            String type = new String(png, pos + 4, 4,
+                    US_ASCII);
+            // length, type, data and CRC
+            int chunk = 12 + length;
+            if (length < 0 || pos + chunk > png.length) {
+                return null;
+            }
+            if (PNG_KEEP.contains(type)) {
+                out.write(png, pos, chunk);
+            }
+            pos += chunk;
+            if (type.equals("IEND")) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Remove application and comment segments from a JPEG, keeping the JFIF,
+     * Adobe and ICC profile segments that affect how it looks. Of the EXIF
+     * segment only the orientation is kept.
+     *
+     * @return the stripped JPEG, null if the data is not a JPEG
+     */
+    private static byte[] stripJpeg(byte[] jpeg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(jpeg))) {
+            if (in.readUnsignedShort() != 0xffd8) {
+                return null;
+            }
+            out.write(0xff);
+            out.write(0xd8);
+
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xff00) != 0xff00) {
+                    return null;
+                }
+                if (marker == 0xffda) {
+                    // start of scan, the rest is image data
+                    writeShort(out, marker);
+                    ByteStreams.copy(in, out);
+                    return out.toByteArray();
+                }
+
+                int length = in.readUnsignedShort();
+                byte[] segment = new byte[length - 2];
+                in.readFully(segment);
+                if (keepJpegSegment(marker, segment)) {
+                    writeShort(out, marker);
+                    writeShort(out, length);
+                    out.write(segment);
+                } else if (isExif(marker, segment)
+                        && exifOrientation(segment) != UPRIGHT) {
+                    out.write(orientationSegment(exifOrientation(segment)));
+                }
+            }
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    private static boolean keepJpegSegment(int marker, byte[] segment) {
+        if (marker == 0xfffe) {
+            // comment
+            return false;
+        }
+        if (marker < 0xffe0 || marker > 0xffef) {
+            // not an application segment
+            return true;
+        }
+        String id = new String(segment, 0, Math.min(segment.length, 11),
+                US_ASCII);
+        return (marker == 0xffe0 && id.startsWith("JFIF"))
+                || (marker == 0xffe2 && id.startsWith("ICC_PROFILE"))
+                || (marker == 0xffee && id.startsWith("Adobe"));
+    }
+
+    /**
+     * Find the segments of a JPEG to carry over when it is re-encoded: its
+     * ICC profile, and its EXIF orientation if it is not upright.
+     *
+     * @return the segments, with their markers and lengths
+     */
+    private static byte[] carriedSegments(byte[] jpeg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(jpeg))) {
+            if (in.readUnsignedShort() != 0xffd8) {
+                return out.toByteArray();
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xff00) != 0xff00 || marker == 0xffda) {
+                    return out.toByteArray();
+                }
+                int length = in.readUnsignedShort();
+                byte[] segment = new byte[length - 2];
+                in.readFully(segment);
+                if (marker == 0xffe2 && keepJpegSegment(marker, segment)) {
+                    writeShort(out, marker);
+                    writeShort(out, length);
+                    out.write(segment);
+                } else if (isExif(marker, segment)
+                        && exifOrientation(segment) != UPRIGHT) {
+                    out.write(orientationSegment(exifOrientation(segment)));
+                }
+            }
+        } catch (EOFException | NegativeArraySizeException ex) {
+            return out.toByteArray();
+        }
+    }
+
+    private static boolean isExif(int marker, byte[] segment) {
+        return marker == 0xffe1 && segment.length >= 14
+                && new String(segment, 0, 4, US_ASCII).equals("Exif");
+    }
+
+    /**
+     * Find the orientation in the first IFD of an EXIF segment.
+     *
+     * @param segment APP1 segment data, starting with the Exif header
+     * @return the orientation, {@link #UPRIGHT} if there is none
+     */
+    private static int exifOrientation(byte[] segment) {
+        // the TIFF structure follows the 6 byte Exif header
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6)
+                .slice();
+        try {
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN);
+            int ifd = tiff.getInt(4);
+            int entries = tiff.getShort(ifd) & 0xffff;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd + 2 + 12 * i;
+                if ((tiff.getShort(entry) & 0xffff) == ORIENTATION_TAG) {
+                    int orientation = tiff.getShort(entry + 8) & 0xffff;
+                    return orientation >= 1 && orientation <= 8
+                            ? orientation : UPRIGHT;
+                }
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            log.debug("Malformed EXIF segment", ex);
+        }
+        return UPRIGHT;
+    }
+
+    /**
+     * Build an APP1 segment holding nothing but an EXIF orientation.
+     */
+    private static byte[] orientationSegment(int orientation) {
+        ByteBuffer segment = ByteBuffer.allocate(36);
+        segment.putShort((short) 0xffe1).putShort((short) 34);
+        segment.put("Exif".getBytes(US_ASCII)).putShort((short) 0);
+        // big endian TIFF header, with the first IFD right after it
+        segment.put("MM".getBytes(US_ASCII)).putShort((short) 42).putInt(8);
+        segment.putShort((short) 1);
+        segment.putShort((short) ORIENTATION_TAG).putShort((short) 3)
+                .putInt(1).putShort((short) orientation).putShort((short) 0);
+        // no next IFD
+        segment.putInt(0);
+        return segment.array();
+    }
+
+    /**
+     * Add segments to an encoded JPEG, after its JFIF segment.
+     */
+    private static byte[] withSegments(byte[] jpeg, byte[] segment) {
+        if (segment.length == 0) {
+            return jpeg;
+        }
+        int pos = 2;
+        if ((jpeg[2] & 0xff) == 0xff && (jpeg[3] & 0xff) == 0xe0) {
+            pos += 2 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff));
+        }
+        byte[] result = new byte[jpeg.length + segment.length];
+        System.arraycopy(jpeg, 0, result, 0, pos);
+        System.arraycopy(segment, 0, result, pos, segment.length);
+        System.arraycopy(jpeg, pos, result, pos + segment.length,
+                jpeg.length - pos);
+        return result;
+    }
+
+    private static void writeShort(OutputStream out, int value)
+            throws IOException {
+        out.write(value >> 8);
+        out.write(value & 0xff);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.cedarsoftware.util.io.JsonReader;
+import com.cedarsoftware.util.io.JsonWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads and writes the plain JSON files that state is kept in between
+ * builds, such as the deploy manifest, and that reports are written to.
+ *
+ * Files are replaced atomically, so a build that is killed while writing
+ * leaves the previous file intact rather than a truncated one.
+ */
+public final class JsonFiles {
+
+    private JsonFiles() {
+    }
+
+    /**
+     * Read a JSON file as maps, lists and values.
+     *
+     * @param file file to read
+     * @return the top level object
+     * @throws IOException if the file cannot be read
+     * @throws com.cedarsoftware.util.io.JsonIoException if the file is not
+     * valid JSON
+     */
+    static Map<?, ?> read(File file) throws IOException {
+        return JsonReader.jsonToMaps(
+                new String(Files.readAllBytes(file.toPath()), UTF_8));
+    }
+
+    /**
+     * Write maps, lists and values as JSON, without type information.
+     * Missing parent directories are created, and the file is replaced
+     * once it is completely written.
+     *
+     * @param file file to write
+     * @param json top level object
+     * @param pretty whether to indent, or keep large files compact
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(File file, Object json, boolean pretty)
+            throws IOException {
+        Map<String, Object> args = new HashMap<>();
+        args.put(JsonWriter.TYPE, false);
+        args.put(JsonWriter.PRETTY_PRINT, pretty);
+        Path dir = Files.createDirectories(file.getAbsoluteFile()
+                .getParentFile().toPath());
+        Path temp = Files.createTempFile(dir, file.getName(), ".tmp");
+        try {
+            Files.write(temp,
+                    JsonWriter.objectToJson(json, args).getBytes(UTF_8));
+            Files.move(temp, file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
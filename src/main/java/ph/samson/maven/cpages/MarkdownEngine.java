@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+
+/**
+ * Converts Markdown for deploying to Confluence and for local previews.
+ *
+ * Implementations are safe to use from several threads at once.
+ */
+public interface MarkdownEngine {
+
+    /**
+     * Parsed Markdown.
+     */
+    interface Document {
+
+        /**
+         * Convert to Confluence storage format.
+         *
+         * @param images resolves the images of the page to attachments
+         * @param out receives the page body in storage format as it is
+         * converted
+         * @throws IOException if the output cannot be written
+         * @throws IllegalArgumentException if an image cannot be read
+         */
+        void toStorage(ImageAttachments images, Writer out)
+                throws IOException;
+    }
+
+    /**
+     * Parse Markdown, so it can be converted separately.
+     *
+     * @param markdown Markdown source
+     * @return parsed document
+     */
+    Document parse(String markdown);
+
+    /**
+     * Convert Markdown to Confluence storage format.
+     *
+     * @param markdown Markdown source
+     * @param images resolves the images of the page to attachments
+     * @param out receives the page body in storage format as it is converted
+     * @throws IOException if the output cannot be written
+     * @throws IllegalArgumentException if an image cannot be read
+     */
+    default void toStorage(String markdown, ImageAttachments images,
+            Writer out) throws IOException {
+        parse(markdown).toStorage(images, out);
+    }
+
+    /**
+     * Convert Markdown to Confluence storage format.
+     *
+     * @param markdown Markdown source
+     * @param images resolves the images of the page to attachments
+     * @return page body in storage format
+     * @throws IllegalArgumentException if an image cannot be read
+     */
+    default String toStorage(String markdown, ImageAttachments images) {
+        StringWriter out = new StringWriter();
+        try {
+            toStorage(markdown, images, out);
+        } catch (IOException ex) {
+            // not thrown by StringWriter
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Convert Markdown to HTML.
+     *
+     * @param markdown Markdown source
+     * @param imageUrls rewrites the location of each image
+     * @return HTML body
+     */
+    String toHtml(String markdown, UnaryOperator<String> imageUrls);
+
+    /**
+     * Get an engine by name.
+     *
+     * @param name {@code pegdown} or {@code commonmark}, in any case
+     * @return the engine
+     * @throws IllegalArgumentException if there is no such engine
+     */
+    static MarkdownEngine named(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "pegdown":
+                return new PegdownEngine();
+            case "commonmark":
+                return new CommonMarkEngine();
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported Markdown engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.rest.Confluence;
+import ph.samson.maven.cpages.rest.model.Page;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+
+/**
+ * Looks up existing pages by title.
+ *
+ * When prefetching, the first lookup lists all pages under the top parent
+ * page, or the whole space if there is none, in a few large requests. Later
+ * lookups are answered from that listing. Titles not in the listing are still
+ * looked up individually since they may exist elsewhere in the space.
+ *
+ * Lookups made by several pages at about the same time can be combined into
+ * one search.
+ */
+class PageIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(PageIndex.class);
+
+    private final Supplier<Map<String, Page>> index;
+    private final Function<String, Page> lookup;
+
+    /**
+     * @param confluence Confluence to look up pages in
+     * @param spaceKey space of the pages
+     * @param topParent page to list descendants of, null to list the space
+     * @param prefetch list pages in bulk, otherwise look up each page
+     * @param batchSize maximum number of pages looked up at once, 1 to look
+     * up each page on its own
+     * @param window milliseconds to wait for other lookups to combine with
+     */
+    PageIndex(Confluence confluence, String spaceKey, PageHandle topParent,
+            boolean prefetch, int batchSize, long window) {
+        if (prefetch) {
+            String parentId = topParent == null ? null : topParent.getId();
+            index = Suppliers.memoize(() -> {
+                Map<String, Page> pages = new HashMap<>();
+                for (Page page : confluence.getPages(spaceKey, parentId)) {
+                    pages.put(page.getTitle(), page);
+                }
+                return pages;
+            });
+        } else {
+            index = HashMap::new;
+        }
+        if (batchSize > 1) {
+            lookup = new Coalescer<String, Page>(batchSize, window,
+                    titles -> confluence.findPages(spaceKey, titles))::get;
+        } else {
+            lookup = title -> confluence.getPage(spaceKey, title);
+        }
+    }
+
+    /**
+     * Get an existing page.
+     *
+     * @param title page title
+     * @return the page, null if none exists in the space
+     */
+    Page get(String title) {
+        Page page = index.get().get(title);
+        if (page == null) {
+            log.debug("Not in index: {}", title);
+            page = lookup.apply(title);
+        }
+        return page;
+    }
+}
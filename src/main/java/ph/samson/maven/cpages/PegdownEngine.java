@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.util.function.UnaryOperator;
+import org.pegdown.LinkRenderer;
+import org.pegdown.PegDownProcessor;
+import org.pegdown.ast.ExpImageNode;
+import org.pegdown.ast.RootNode;
+
+/**
+ * Converts Markdown with pegdown.
+ *
+ * pegdown backtracks, so it can be slow on large pages.
+ */
+class PegdownEngine implements MarkdownEngine {
+
+    private final ThreadLocal<PegDownProcessor> pdp
+            = ThreadLocal.withInitial(PegDownProcessor::new);
+
+    @Override
+    public Document parse(String markdown) {
+        RootNode root = pdp.get().parseMarkdown(markdown.toCharArray());
+        return (images, out)
+                -> new ConfluenceStorageSerializer(images).write(root, out);
+    }
+
+    @Override
+    public String toStorage(String markdown, ImageAttachments images) {
+        return new ConfluenceStorageSerializer(images).toHtml(
+                pdp.get().parseMarkdown(markdown.toCharArray()));
+    }
+
+    @Override
+    public String toHtml(String markdown, UnaryOperator<String> imageUrls) {
+        return pdp.get().markdownToHtml(markdown, new LinkRenderer() {
+
+            @Override
+            public Rendering render(ExpImageNode node, String text) {
+                Rendering original = super.render(node, text);
+                Rendering rendering = new Rendering(
+                        imageUrls.apply(node.url), text);
+                for (Attribute attribute : original.attributes) {
+                    rendering = rendering.withAttribute(attribute);
+                }
+                return rendering;
+            }
+        });
+    }
+}
@@ -17,31 +17,317 @@
 package ph.samson.maven.cpages;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
 import net.sourceforge.plantuml.GeneratedImage;
-import net.sourceforge.plantuml.Option;
 import net.sourceforge.plantuml.SourceFileReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class PlantUml {
+/**
+ * Renders PlantUML diagrams on a bounded pool.
+ *
+ * Each diagram is rendered on its own, so the diagrams of a page are rendered
+ * concurrently. Diagrams that take longer than the timeout to render fail
+ * the build, however long they waited for a thread, and their thread is
+ * interrupted.
+ * Render times are recorded so the slowest diagrams can be reported.
+ * Diagrams found in the cache are copied from there instead of rendered.
+ */
+public class PlantUml implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(PlantUml.class);
 
-    static void generate(Path dir, File outputDir) throws IOException {
+    /**
+     * Number of diagrams listed by {@link #report()}.
+     */
+    private static final int SLOWEST = 5;
+
+    private final ExecutorService pool;
+    private final long timeout;
+    private final FileFormat format;
+    private final boolean pngFallback;
+    private final Map<File, Long> renderTimes = new ConcurrentHashMap<>();
+    private final DiagramCache cache;
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    /**
+     * Rendering of a diagram, which knows when it started to run.
+     */
+    public static class Rendering extends FutureTask<List<File>> {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile long start;
+
+        private Rendering(Callable<List<File>> render) {
+            super(render);
+        }
+
+        @Override
+        public void run() {
+            start = System.nanoTime();
+            started.countDown();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            // also when cancelled before it ran
+            started.countDown();
+        }
+    }
+
+    /**
+     * @param threads maximum number of diagrams rendered at once
+     * @param timeout seconds to wait for a single diagram
+     * @param format image format to render
+     * @param pngFallback render a PNG instead if a diagram fails to render
+     * in the given format
+     * @param cacheDir directory of rendered diagrams, null to always render
+     * @param cacheSize size in bytes the cache is trimmed to
+     */
+    public PlantUml(int threads, long timeout, FileFormat format,
+            boolean pngFallback, File cacheDir, long cacheSize) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task,
+                    "plantuml-" + count.incrementAndGet());
+            // a diagram that timed out may still be rendering
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeout = timeout;
+        this.format = format;
+        this.pngFallback = pngFallback && format != FileFormat.PNG;
+        this.cache = cacheDir == null ? null
+                : new DiagramCache(cacheDir, cacheSize);
+        if (cache != null) {
+            cache.evict();
+        }
+    }
+
+    /**
+     * Render all diagrams in a directory.
+     *
+     * @param dir directory containing .puml files
+     * @param outputDir directory to write images to
+     * @return generated images
+     * @throws IOException if any diagram fails to render in time
+     */
+    List<File> generate(Path dir, File outputDir) throws IOException {
         File[] plantumlFiles = dir.toFile().listFiles((file)
                 -> file.getName().endsWith(".puml"));
 
-        Option option = new Option();
-        option.setFileFormat(FileFormat.PNG);
+        List<Rendering> rendering = new ArrayList<>();
         for (File plantumlFile : plantumlFiles) {
-            SourceFileReader reader = new SourceFileReader(
-                    plantumlFile, outputDir, option.getFileFormatOption());
+            rendering.add(submit(plantumlFile, outputDir));
+        }
+
+        List<File> images = new ArrayList<>();
+        for (int i = 0; i < plantumlFiles.length; i++) {
+            images.addAll(await(plantumlFiles[i], rendering.get(i)));
+        }
+        return images;
+    }
+
+    /**
+     * Start rendering a diagram.
+     *
+     * @param plantumlFile diagram source
+     * @param outputDir directory to write images to
+     * @return generated images, once rendered
+     */
+    public Rendering submit(File plantumlFile, File outputDir) {
+        Rendering rendering = new Rendering(() -> {
+            if (pngFallback) {
+                try {
+                    return generate(plantumlFile, outputDir, format);
+                } catch (IOException | RuntimeException ex) {
+                    log.warn("Rendering {} as PNG: {}", plantumlFile,
+                            ex.getMessage());
+                }
+            }
+            return generate(plantumlFile, outputDir,
+                    pngFallback ? FileFormat.PNG : format);
+        });
+        pool.execute(rendering);
+        return rendering;
+    }
+
+    private List<File> generate(File plantumlFile, File outputDir,
+            FileFormat fileFormat) throws IOException {
+        String key = cache == null ? null
+                : cache.key(plantumlFile, fileFormat);
+        if (key != null) {
+            List<File> cached = cache.get(key, outputDir);
+            if (cached != null) {
+                log.info("cached: {}", cached);
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        List<File> images = render(plantumlFile, outputDir, fileFormat);
+        if (key != null) {
+            cache.put(key, images);
+        }
+        return images;
+    }
+
+    private List<File> render(File plantumlFile, File outputDir,
+            FileFormat fileFormat) throws IOException {
+        long start = System.nanoTime();
+        try {
+            SourceFileReader reader = new SourceFileReader(plantumlFile,
+                    outputDir, new FileFormatOption(fileFormat));
+            List<File> images = new ArrayList<>();
             for (GeneratedImage image : reader.getGeneratedImages()) {
                 log.info("generated: {}", image);
+                if (pngFallback && fileFormat != FileFormat.PNG) {
+                    if (image.lineErrorRaw() != -1) {
+                        // let the PNG rendering show the error instead
+                        throw new IOException("Error at line "
+                                + image.lineErrorRaw() + " of "
+                                + plantumlFile);
+                    }
+                    if (!isSvg(image.getPngFile())) {
+                        // some diagram types, such as ditaa, only do PNG
+                        Files.delete(image.getPngFile().toPath());
+                        throw new IOException(plantumlFile
+                                + " cannot be rendered as " + fileFormat);
+                    }
+                }
+                images.add(image.getPngFile());
             }
+            return images;
+        } finally {
+            renderTimes.put(plantumlFile, System.nanoTime() - start);
+        }
+    }
+
+    private static boolean isSvg(File image) throws IOException {
+        try (InputStream in = new FileInputStream(image)) {
+            return in.read() == '<';
+        }
+    }
+
+    /**
+     * Parse an image format name.
+     *
+     * @param name {@code png} or {@code svg}, in any case
+     * @return the image format
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public static FileFormat format(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "png":
+                return FileFormat.PNG;
+            case "svg":
+                return FileFormat.SVG;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported diagram format: " + name);
+        }
+    }
+
+    /**
+     * Name of the image a diagram is referenced by in Markdown, which is
+     * always the PNG name PlantUML would give it.
+     *
+     * @param image rendered image
+     * @return PNG file name of the image
+     */
+    public static String referenceName(File image) {
+        String name = image.getName();
+        int ext = name.lastIndexOf('.');
+        return (ext < 0 ? name : name.substring(0, ext)) + ".png";
+    }
+
+    /**
+     * Wait for a diagram to be rendered. The timeout counts from when the
+     * diagram started to render, not from when it was submitted.
+     *
+     * @param plantumlFile diagram source
+     * @param rendering result of {@link #submit(File, File)}
+     * @return generated images
+     * @throws IOException if the diagram failed to render in time
+     */
+    public List<File> await(File plantumlFile, Rendering rendering)
+            throws IOException {
+        try {
+            rendering.started.await();
+            long remaining = TimeUnit.SECONDS.toNanos(timeout)
+                    - (System.nanoTime() - rendering.start);
+            return rendering.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            rendering.cancel(true);
+            throw new IOException("Timed out rendering " + plantumlFile
+                    + " after " + timeout + " s", ex);
+        } catch (CancellationException ex) {
+            throw new IOException("Cancelled rendering " + plantumlFile, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted rendering "
+                    + plantumlFile);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed rendering " + plantumlFile, cause);
+        }
+    }
+
+    /**
+     * Log the total render time and the diagrams that took the longest.
+     */
+    public void report() {
+        if (cacheHits.get() > 0) {
+            log.info("Copied {} diagrams from cache", cacheHits.get());
+        }
+        if (renderTimes.isEmpty()) {
+            return;
+        }
+
+        long total = renderTimes.values().stream()
+                .mapToLong(Long::longValue).sum();
+        log.info("Rendered {} diagrams in {} ms", renderTimes.size(),
+                TimeUnit.NANOSECONDS.toMillis(total));
+        renderTimes.entrySet().stream()
+                .sorted(Map.Entry.<File, Long>comparingByValue().reversed())
+                .limit(SLOWEST)
+                .forEach(e -> log.info(String.format("%6d ms %3.0f%% %s",
+                        TimeUnit.NANOSECONDS.toMillis(e.getValue()),
+                        100.0 * e.getValue() / total,
+                        e.getKey())));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        if (cache != null) {
+            cache.evict();
         }
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.cedarsoftware.util.io.JsonIoException;
+import com.google.common.hash.Hasher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.rest.StorageBody;
+
+import static com.google.common.hash.Hashing.sha1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rendered pages remembered across runs.
+ *
+ * The output directory of each wiki dir keeps the body rendered last along
+ * with a record of what it was rendered from. The body is reused if the
+ * Markdown source, the rendered diagrams and the render configuration are
+ * the same, and none of the images it refers to have changed.
+ */
+class RenderCache {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(RenderCache.class);
+
+    /**
+     * Name of the record in an output directory.
+     */
+    private static final String RECORD = ".cpages-render.json";
+
+    private final String configuration;
+    private final Fingerprints fingerprints;
+
+    /**
+     * @param configuration everything besides the source that affects the
+     * rendered body, such as the plugin version and the footer
+     * @param fingerprints content hashes of images
+     */
+    RenderCache(String configuration, Fingerprints fingerprints) {
+        this.configuration = configuration;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * Compute the cache key of a page.
+     *
+     * @param markdown Markdown source
+     * @param diagrams rendered diagrams by the PNG name they are referenced
+     * with
+     * @return cache key
+     */
+    String key(String markdown, Map<String, File> diagrams) {
+        Hasher hasher = sha1().newHasher()
+                .putString(configuration, UTF_8)
+                .putChar('\0')
+                .putString(markdown, UTF_8);
+        for (Map.Entry<String, File> diagram
+                : new TreeMap<>(diagrams).entrySet()) {
+            hasher.putChar('\0')
+                    .putString(diagram.getKey(), UTF_8)
+                    .putChar('\0')
+                    .putString(diagram.getValue().getName(), UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Get the page rendered last in an output directory.
+     *
+     * @param outputDir output directory of a wiki dir
+     * @param key cache key of the page
+     * @param title page title
+     * @return the rendered page, null if it must be rendered again
+     */
+    ConfluencePage get(File outputDir, String key, String title) {
+        File record = new File(outputDir, RECORD);
+        if (!record.isFile()) {
+            return null;
+        }
+
+        try {
+            Map<?, ?> json = JsonFiles.read(record);
+            if (!key.equals(json.get("key"))) {
+                return null;
+            }
+            File body = new File((String) json.get("body"));
+            if (!body.isFile()) {
+                return null;
+            }
+
+            List<File> attachments = new ArrayList<>();
+            Map<?, ?> hashes = (Map<?, ?>) json.get("attachments");
+            for (Map.Entry<?, ?> hash : hashes.entrySet()) {
+                File attachment = new File((String) hash.getKey());
+                if (!attachment.isFile() || !hash.getValue().equals(
+                        fingerprints.hash(attachment))) {
+                    log.debug("{} changed", attachment);
+                    return null;
+                }
+                attachments.add(attachment);
+            }
+
+            return new ConfluencePage(title, new StorageBody(body,
+                    (String) json.get("hash")), attachments);
+        } catch (IOException | JsonIoException | ClassCastException
+                | NullPointerException ex) {
+            log.warn("Ignoring unreadable render record {}", record, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Forget the page rendered in an output directory, before its body is
+     * overwritten.
+     *
+     * @param outputDir output directory of a wiki dir
+     * @throws IOException if the record cannot be deleted
+     */
+    void remove(File outputDir) throws IOException {
+        Files.deleteIfExists(new File(outputDir, RECORD).toPath());
+    }
+
+    /**
+     * Remember a rendered page.
+     *
+     * @param outputDir output directory of a wiki dir
+     * @param key cache key of the page
+     * @param page the rendered page, with its body in a file
+     * @throws IOException if the record cannot be written
+     */
+    void put(File outputDir, String key, ConfluencePage page)
+            throws IOException {
+        Map<String, Object> attachments = new LinkedHashMap<>();
+        for (File attachment : page.getAttachments()) {
+            attachments.put(attachment.getAbsolutePath(),
+                    fingerprints.hash(attachment));
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("key", key);
+        json.put("body", page.getBody().getFile().getAbsolutePath());
+        json.put("hash", page.getBody().getHash());
+        json.put("attachments", attachments);
+
+        JsonFiles.write(new File(outputDir, RECORD), json, true);
+    }
+}
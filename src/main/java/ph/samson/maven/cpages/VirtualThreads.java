@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Virtual threads, when running on JDK 21 or later.
+ *
+ * The plugin is built for Java 8, so the JDK methods are looked up
+ * reflectively. JDK 19 and 20 have the methods too, but as a preview feature
+ * that throws unless enabled, so they are only used from JDK 21 on.
+ */
+class VirtualThreads {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method NEW_EXECUTOR;
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    /**
+     * First JDK release where virtual threads are not a preview feature.
+     */
+    private static final int RELEASE = 21;
+
+    static {
+        Method newExecutor = null;
+        Method ofVirtual = null;
+        Method unstarted = null;
+        String version = System.getProperty("java.specification.version");
+        if (featureVersion(version) >= RELEASE) {
+            try {
+                newExecutor = Class.forName("java.util.concurrent.Executors")
+                        .getMethod("newVirtualThreadPerTaskExecutor");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = Class.forName("java.lang.Thread$Builder")
+                        .getMethod("unstarted", Runnable.class);
+            } catch (ClassNotFoundException | NoSuchMethodException ex) {
+                log.debug("No virtual threads in this JDK", ex);
+                newExecutor = null;
+            }
+        } else {
+            log.debug("No virtual threads in JDK {}", version);
+        }
+        NEW_EXECUTOR = newExecutor;
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * @param version Java specification version, such as "1.8" or "21"
+     * @return the feature release number, 0 if unknown
+     */
+    static int featureVersion(String version) {
+        if (version == null) {
+            return 0;
+        }
+        String feature = version.startsWith("1.")
+                ? version.substring(2)
+                : version;
+        int dot = feature.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? feature
+                    : feature.substring(0, dot));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether this JDK has virtual threads
+     */
+    static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return executor that starts a virtual thread for each task
+     * @throws UnsupportedOperationException if virtual threads are not
+     * available
+     */
+    static ExecutorService newExecutor() {
+        return (ExecutorService) invoke(NEW_EXECUTOR, null);
+    }
+
+    /**
+     * @param task task to run
+     * @return unstarted virtual thread running the task
+     * @throws UnsupportedOperationException if virtual threads are not
+     * available
+     */
+    static Thread newThread(Runnable task) {
+        return (Thread) invoke(UNSTARTED, invoke(OF_VIRTUAL, null), task);
+    }
+
+    private static Object invoke(Method method, Object target,
+            Object... args) {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads need JDK 21 or later");
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations over fixed buckets, safe to record into from
+ * several threads.
+ */
+public class Histogram {
+
+    /**
+     * Upper bounds of the buckets in milliseconds. Durations beyond the last
+     * bound go in a further, unbounded bucket.
+     */
+    static final double[] BOUNDS = {
+        1, 2.5, 5, 10, 25, 50, 100, 250, 500,
+        1_000, 2_500, 5_000, 10_000, 30_000, 60_000
+    };
+
+    private final AtomicLongArray buckets
+            = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        double millis = nanos / 1e6;
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return total of the durations recorded in nanoseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return longest duration recorded in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param bucket index of a bucket, up to the number of bounds
+     * @return number of durations in the bucket
+     */
+    long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Estimate a percentile as the upper bound of the bucket it falls in.
+     *
+     * @param fraction percentile as a fraction, such as 0.95
+     * @return estimated duration in nanoseconds, never more than the longest
+     */
+    public long getPercentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count.get());
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= target) {
+                return Math.min(max.get(),
+                        (long) (BOUNDS[bucket] * TimeUnit.MILLISECONDS
+                        .toNanos(1)));
+            }
+        }
+        return max.get();
+    }
+}
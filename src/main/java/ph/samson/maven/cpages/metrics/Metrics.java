@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.JsonFiles;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Counts and timings of a deploy.
+ *
+ * Confluence requests are timed per endpoint, such as {@code getPage}, with
+ * their retries, failures and the bytes of their bodies. Deploy stages, such
+ * as {@code render}, are timed per page or diagram. Everything can be logged
+ * as a summary, and written as JSON or in the Prometheus text format.
+ * Requests and stages are also recorded as spans of a {@link Trace}.
+ */
+public class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final String PREFIX = "cpages_";
+
+    private final Map<String, Histogram> requests
+            = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicLong> retries
+            = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicLong> failures
+            = new ConcurrentSkipListMap<>();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final Map<String, Histogram> stages
+            = new ConcurrentSkipListMap<>();
+    private final Trace trace;
+
+    public Metrics() {
+        this(Trace.OFF);
+    }
+
+    /**
+     * @param trace records requests and stages as spans
+     */
+    public Metrics(Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * @return trace that requests and stages are recorded in
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Record the time a request took to get a response, ending now.
+     *
+     * @param endpoint kind of request
+     * @param start {@link System#nanoTime()} when the request was sent
+     * @param status response status, or the failure if there is none
+     */
+    public void recordRequest(String endpoint, long start, Object status) {
+        long end = System.nanoTime();
+        requests.computeIfAbsent(endpoint, e -> new Histogram())
+                .record(end - start);
+        trace.record(endpoint, "request", "status", status, start, end);
+    }
+
+    /**
+     * Count a request that is sent again.
+     *
+     * @param endpoint kind of request
+     */
+    public void recordRetry(String endpoint) {
+        retries.computeIfAbsent(endpoint, e -> new AtomicLong())
+                .incrementAndGet();
+    }
+
+    /**
+     * Count a request that failed after any retries.
+     *
+     * @param endpoint kind of request
+     */
+    public void recordFailure(String endpoint) {
+        failures.computeIfAbsent(endpoint, e -> new AtomicLong())
+                .incrementAndGet();
+    }
+
+    /**
+     * @param bytes bytes of request bodies sent
+     */
+    public void addSentBytes(long bytes) {
+        sentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param bytes bytes of response bodies received
+     */
+    public void addReceivedBytes(long bytes) {
+        receivedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Record the time a stage took for one page, ending now.
+     *
+     * @param stage name of the stage
+     * @param page page the stage worked on, null if it is not for a page
+     * @param start {@link System#nanoTime()} when the stage started
+     */
+    public void recordStage(String stage, String page, long start) {
+        long end = System.nanoTime();
+        stages.computeIfAbsent(stage, s -> new Histogram())
+                .record(end - start);
+        trace.record(stage, "stage", "page", page, start, end);
+    }
+
+    /**
+     * Log a summary.
+     */
+    public void report() {
+        Set<String> endpoints = endpoints();
+        if (!endpoints.isEmpty()) {
+            log.info(String.format(Locale.ROOT,
+                    "%-18s %6s %8s %8s %8s %7s %8s", "Request", "count",
+                    "p50 ms", "p95 ms", "max ms", "retries", "failures"));
+            for (String endpoint : endpoints) {
+                Histogram h = request(endpoint);
+                log.info(String.format(Locale.ROOT,
+                        "%-18s %6d %8d %8d %8d %7d %8d", endpoint,
+                        h.getCount(), millis(h.getPercentile(0.5)),
+                        millis(h.getPercentile(0.95)), millis(h.getMax()),
+                        count(retries, endpoint), count(failures, endpoint)));
+            }
+            log.info("Sent {} bytes, received {} bytes", sentBytes.get(),
+                    receivedBytes.get());
+        }
+
+        if (!stages.isEmpty()) {
+            log.info(String.format(Locale.ROOT,
+                    "%-18s %6s %8s %8s %8s %8s", "Stage", "count",
+                    "total ms", "p50 ms", "p95 ms", "max ms"));
+            for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+                Histogram h = stage.getValue();
+                log.info(String.format(Locale.ROOT,
+                        "%-18s %6d %8d %8d %8d %8d", stage.getKey(),
+                        h.getCount(), millis(h.getSum()),
+                        millis(h.getPercentile(0.5)),
+                        millis(h.getPercentile(0.95)), millis(h.getMax())));
+            }
+        }
+    }
+
+    /**
+     * Write all metrics as JSON.
+     *
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(File file) throws IOException {
+        Map<String, Object> requestsJson = new LinkedHashMap<>();
+        for (String endpoint : endpoints()) {
+            Map<String, Object> json = summary(request(endpoint));
+            json.put("retries", count(retries, endpoint));
+            json.put("failures", count(failures, endpoint));
+            requestsJson.put(endpoint, json);
+        }
+        Map<String, Object> stagesJson = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+            stagesJson.put(stage.getKey(), summary(stage.getValue()));
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("requests", requestsJson);
+        json.put("sentBytes", sentBytes.get());
+        json.put("receivedBytes", receivedBytes.get());
+        json.put("stages", stagesJson);
+
+        JsonFiles.write(file, json, true);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writePrometheus(File file) throws IOException {
+        StringBuilder out = new StringBuilder();
+        Map<String, Histogram> byEndpoint = new LinkedHashMap<>();
+        Map<String, Long> retriesByEndpoint = new LinkedHashMap<>();
+        Map<String, Long> failuresByEndpoint = new LinkedHashMap<>();
+        for (String endpoint : endpoints()) {
+            byEndpoint.put(endpoint, request(endpoint));
+            retriesByEndpoint.put(endpoint, count(retries, endpoint));
+            failuresByEndpoint.put(endpoint, count(failures, endpoint));
+        }
+
+        histograms(out, "request_duration_seconds",
+                "Time until Confluence responded.", "endpoint", byEndpoint);
+        counters(out, "request_retries_total",
+                "Confluence requests sent again.", "endpoint",
+                retriesByEndpoint);
+        counters(out, "request_failures_total",
+                "Confluence requests that failed after any retries.",
+                "endpoint", failuresByEndpoint);
+        header(out, "sent_bytes_total",
+                "Uncompressed bytes of request bodies sent.", "counter");
+        out.append(PREFIX).append("sent_bytes_total ")
+                .append(sentBytes.get()).append('\n');
+        header(out, "received_bytes_total",
+                "Uncompressed bytes of response bodies received.", "counter");
+        out.append(PREFIX).append("received_bytes_total ")
+                .append(receivedBytes.get()).append('\n');
+        histograms(out, "stage_duration_seconds",
+                "Time taken by a deploy stage for one page or diagram.",
+                "stage", stages);
+        write(file, out.toString());
+    }
+
+    private Set<String> endpoints() {
+        Set<String> endpoints = new TreeSet<>(requests.keySet());
+        endpoints.addAll(retries.keySet());
+        endpoints.addAll(failures.keySet());
+        return endpoints;
+    }
+
+    private Histogram request(String endpoint) {
+        Histogram h = requests.get(endpoint);
+        return h == null ? new Histogram() : h;
+    }
+
+    private static long count(Map<String, AtomicLong> counts, String key) {
+        AtomicLong count = counts.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    private static Map<String, Object> summary(Histogram h) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("count", h.getCount());
+        json.put("totalMillis", millis(h.getSum()));
+        json.put("p50Millis", millis(h.getPercentile(0.5)));
+        json.put("p95Millis", millis(h.getPercentile(0.95)));
+        json.put("p99Millis", millis(h.getPercentile(0.99)));
+        json.put("maxMillis", millis(h.getMax()));
+        return json;
+    }
+
+    private static void header(StringBuilder out, String name, String help,
+            String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ')
+                .append(help).append('\n')
+                .append("# TYPE ").append(PREFIX).append(name).append(' ')
+                .append(type).append('\n');
+    }
+
+    private static void counters(StringBuilder out, String name, String help,
+            String label, Map<String, Long> counts) {
+        header(out, name, help, "counter");
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            out.append(PREFIX).append(name).append('{').append(label)
+                    .append("=\"").append(count.getKey()).append("\"} ")
+                    .append(count.getValue()).append('\n');
+        }
+    }
+
+    private static void histograms(StringBuilder out, String name,
+            String help, String label, Map<String, Histogram> histograms) {
+        header(out, name, help, "histogram");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String labels = label + "=\"" + entry.getKey() + "\"";
+            Histogram h = entry.getValue();
+            long cumulative = 0;
+            for (int bucket = 0; bucket <= Histogram.BOUNDS.length; bucket++) {
+                cumulative += h.getBucket(bucket);
+                String le = bucket < Histogram.BOUNDS.length
+                        ? Double.toString(Histogram.BOUNDS[bucket] / 1000)
+                        : "+Inf";
+                out.append(PREFIX).append(name).append("_bucket{")
+                        .append(labels).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(PREFIX).append(name).append("_sum{").append(labels)
+                    .append("} ").append(h.getSum() / 1e9).append('\n');
+            out.append(PREFIX).append(name).append("_count{").append(labels)
+                    .append("} ").append(h.getCount()).append('\n');
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile()
+                .toPath());
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+    }
+}
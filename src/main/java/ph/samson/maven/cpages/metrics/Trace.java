@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import ph.samson.maven.cpages.JsonFiles;
+
+/**
+ * Timeline of what each thread did, in the Chrome trace event format.
+ *
+ * Every span is a complete event named after its stage or request, with the
+ * page or status it concerns as an argument. The written file can be opened
+ * in chrome://tracing or Perfetto to see how well work overlapped and which
+ * pages took longest.
+ */
+public class Trace {
+
+    /**
+     * Trace that records nothing.
+     */
+    public static final Trace OFF = new Trace(false);
+
+    private final boolean enabled;
+    private final long origin = System.nanoTime();
+    private final Queue<Map<String, Object>> events
+            = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threads = new ConcurrentHashMap<>();
+
+    public Trace() {
+        this(true);
+    }
+
+    private Trace(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return whether spans are recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record a span of the current thread.
+     *
+     * @param name stage or request
+     * @param category kind of span, such as {@code request}
+     * @param argName name of the argument, such as {@code page}
+     * @param argValue value of the argument, may be null
+     * @param start {@link System#nanoTime()} at the start
+     * @param end {@link System#nanoTime()} at the end
+     */
+    public void record(String name, String category, String argName,
+            Object argValue, long start, long end) {
+        if (!enabled) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        threads.putIfAbsent(thread.getId(), thread.getName());
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("name", name);
+        event.put("cat", category);
+        event.put("ph", "X");
+        event.put("ts", micros(start - origin));
+        event.put("dur", micros(end - start));
+        event.put("pid", 1);
+        event.put("tid", thread.getId());
+        if (argValue != null) {
+            event.put("args", Collections.singletonMap(argName,
+                    argValue.toString()));
+        }
+        events.add(event);
+    }
+
+    /**
+     * Write the recorded spans, along with the names of their threads.
+     *
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        List<Object> traceEvents = new ArrayList<>();
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("name", "thread_name");
+            event.put("ph", "M");
+            event.put("pid", 1);
+            event.put("tid", thread.getKey());
+            event.put("args", Collections.singletonMap("name",
+                    thread.getValue()));
+            traceEvents.add(event);
+        }
+        traceEvents.addAll(events);
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceEvents", traceEvents);
+        json.put("displayTimeUnit", "ms");
+
+        JsonFiles.write(file, json, false);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
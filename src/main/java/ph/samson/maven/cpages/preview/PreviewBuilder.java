@@ -24,15 +24,15 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
-import net.sourceforge.plantuml.FileFormat;
-import net.sourceforge.plantuml.FileFormatOption;
-import net.sourceforge.plantuml.SourceFileReader;
-import org.pegdown.PegDownProcessor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.MarkdownEngine;
+import ph.samson.maven.cpages.PlantUml;
+import ph.samson.maven.cpages.metrics.Trace;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.APPEND;
@@ -48,28 +48,35 @@ class PreviewBuilder {
             + " src=\"http://localhost:35729/livereload.js?snipver=1\">"
             + "</script>")
             .getBytes(UTF_8);
-    private static final FileFormatOption PNG
-            = new FileFormatOption(FileFormat.PNG);
 
-    private final PegDownProcessor pdp = new PegDownProcessor();
     private final Path sourceDir;
     private final Path outputDir;
     private final PreviewLauncher launcher;
+    private final PlantUml plantUml;
+    private final MarkdownEngine engine;
+    private final Trace trace;
+    private final Map<Path, File> diagrams = new ConcurrentHashMap<>();
 
     PreviewBuilder(Path sourceDir, Path outputDir,
-            PreviewLauncher launcher) {
+            PreviewLauncher launcher, PlantUml plantUml,
+            MarkdownEngine engine, Trace trace) {
         this.sourceDir = sourceDir;
         this.outputDir = outputDir;
         this.launcher = launcher;
+        this.plantUml = plantUml;
+        this.engine = engine;
+        this.trace = trace;
     }
 
     Path buildHtml(Path sourceMd) throws IOException {
         log.info("buildHtml {}", sourceMd);
         String sourceName = sourceMd.getFileName().toString();
         int extIdx = sourceName.lastIndexOf("md");
-        String html = pdp.markdownToHtml(
-                new String(Files.readAllBytes(sourceMd), UTF_8));
-        Path htmlFile = targetDir(sourceMd).resolve(
+        Path targetDir = targetDir(sourceMd);
+        String html = engine.toHtml(
+                new String(Files.readAllBytes(sourceMd), UTF_8),
+                url -> diagramLink(targetDir, url));
+        Path htmlFile = targetDir.resolve(
                 sourceName.substring(0, extIdx) + "html");
         Files.write(htmlFile, html.getBytes(UTF_8));
         Files.write(htmlFile, LIVE_RELOAD_SCRIPT, APPEND);
@@ -79,25 +86,45 @@ class PreviewBuilder {
 
     List<Path> buildPngs(Path sourcePuml) throws IOException {
         log.info("buildPng {}", sourcePuml);
-        SourceFileReader reader = new SourceFileReader(
-                sourcePuml.toFile(), targetDir(sourcePuml).toFile(), PNG);
-        List<Path> pngs = reader.getGeneratedImages().stream()
-                .map(image -> image.getPngFile().toPath())
-                .collect(Collectors.toList());
+        List<Path> pngs = new ArrayList<>();
+        for (File png : rendered(plantUml.await(sourcePuml.toFile(),
+                plantUml.submit(sourcePuml.toFile(),
+                        targetDir(sourcePuml).toFile())))) {
+            pngs.add(png.toPath());
+        }
         log.info("built {}", pngs);
         return pngs;
     }
 
+    /**
+     * Remember rendered diagrams so pages can refer to them by their PNG
+     * name whatever their format.
+     */
+    private List<File> rendered(List<File> images) {
+        for (File image : images) {
+            diagrams.put(image.toPath().resolveSibling(
+                    PlantUml.referenceName(image)), image);
+        }
+        return images;
+    }
+
     void build(Path filename) throws IOException {
-        if (filename.toString().endsWith(".md")) {
-            launcher.launch(buildHtml(filename));
-        } else if (filename.toString().endsWith(".puml")) {
-            buildPngs(filename);
+        long start = System.nanoTime();
+        try {
+            if (filename.toString().endsWith(".md")) {
+                launcher.launch(buildHtml(filename));
+            } else if (filename.toString().endsWith(".puml")) {
+                buildPngs(filename);
+            }
+        } finally {
+            trace.record("build", "preview", "file", filename, start,
+                    System.nanoTime());
         }
     }
 
     List<Path> buildAll() throws IOException {
-        List<Path> htmlFiles = new ArrayList<>();
+        List<Path> contentFiles = new ArrayList<>();
+        Map<File, PlantUml.Rendering> rendering = new LinkedHashMap<>();
         Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
 
             @Override
@@ -109,36 +136,60 @@ class PreviewBuilder {
                 }
 
                 log.info("preview: {}", dir);
-                File[] contentFiles = dir.toFile()
+                File[] pageFiles = dir.toFile()
                         .listFiles(file -> file.getName().endsWith(".md"));
-                if (contentFiles.length < 1) {
+                if (pageFiles.length < 1) {
                     log.error("{} has no page content", dir);
                     throw new IllegalArgumentException("No page content in "
                             + dir);
-                } else if (contentFiles.length > 1) {
+                } else if (pageFiles.length > 1) {
                     log.error("{} has more than one content file: {}",
-                            dir, contentFiles);
+                            dir, pageFiles);
                     throw new IllegalArgumentException(
                             "More than one content file in " + dir);
                 }
-                htmlFiles.add(buildHtml(contentFiles[0].toPath()));
-
-                Arrays.stream(dir.toFile()
-                        .listFiles(file -> file.getName().endsWith(".puml")))
-                        .forEach(puml -> {
-                            try {
-                                buildPngs(puml.toPath());
-                            } catch (IOException ex) {
-                                throw new RuntimeException(ex);
-                            }
-                        });
+                contentFiles.add(pageFiles[0].toPath());
+
+                for (File puml : dir.toFile()
+                        .listFiles(file -> file.getName().endsWith(".puml"))) {
+                    log.info("buildPng {}", puml);
+                    rendering.put(puml, plantUml.submit(puml,
+                            targetDir(puml.toPath()).toFile()));
+                }
 
                 return FileVisitResult.CONTINUE;
             }
         });
+
+        // diagrams of all pages render concurrently with the walk, and
+        // pages are built once the names of their diagrams are known
+        for (Map.Entry<File, PlantUml.Rendering> diagram
+                : rendering.entrySet()) {
+            long start = System.nanoTime();
+            log.info("built {}", rendered(
+                    plantUml.await(diagram.getKey(), diagram.getValue())));
+            trace.record("diagram", "preview", "file", diagram.getKey(),
+                    start, System.nanoTime());
+        }
+
+        List<Path> htmlFiles = new ArrayList<>();
+        for (Path contentFile : contentFiles) {
+            long start = System.nanoTime();
+            htmlFiles.add(buildHtml(contentFile));
+            trace.record("build", "preview", "file", contentFile, start,
+                    System.nanoTime());
+        }
         return htmlFiles;
     }
 
+    /**
+     * Point images named after a diagram at the rendered diagram.
+     */
+    private String diagramLink(Path targetDir, String url) {
+        File diagram = diagrams.get(targetDir.resolve(url));
+        return diagram == null ? url : diagram.getName();
+    }
+
     private Path targetDir(Path sourceFile) throws IOException {
         return Files.createDirectories(outputDir.resolve(
                 sourceDir.relativize(sourceFile.getParent())
@@ -18,11 +18,17 @@ package ph.samson.maven.cpages.preview;
 
 import java.io.File;
 import java.io.IOException;
+import net.sourceforge.plantuml.FileFormat;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.MarkdownEngine;
+import ph.samson.maven.cpages.PlantUml;
+import ph.samson.maven.cpages.metrics.Trace;
 
 /**
  * Renders Markdown to HTML and opens in your browser.
@@ -30,6 +36,9 @@ import org.apache.maven.plugins.annotations.Parameter;
 @Mojo(name = "preview", defaultPhase = LifecyclePhase.SITE)
 public class PreviewMojo extends AbstractMojo {
 
+    private static final Logger log
+            = LoggerFactory.getLogger(PreviewMojo.class);
+
     @Parameter(property = "srcDir",
             defaultValue = "${basedir}/src")
     protected File srcDir;
@@ -38,31 +47,132 @@ public class PreviewMojo extends AbstractMojo {
             defaultValue = "${project.build.directory}/preview")
     protected File previewDir;
 
+    /**
+     * Markdown engine, either {@code pegdown} or {@code commonmark}.
+     */
+    @Parameter(property = "confluence.markdownEngine",
+            defaultValue = "pegdown")
+    protected String markdownEngine;
+
+    /**
+     * Number of PlantUML diagrams to render concurrently. Defaults to the
+     * number of available processors.
+     */
+    @Parameter(property = "confluence.diagramThreads")
+    protected int diagramThreads;
+
+    /**
+     * Seconds to wait for a single PlantUML diagram to render.
+     */
+    @Parameter(property = "confluence.diagramTimeout",
+            defaultValue = "60")
+    protected int diagramTimeout;
+
+    /**
+     * Image format of PlantUML diagrams, either {@code png} or {@code svg}.
+     */
+    @Parameter(property = "confluence.diagramFormat",
+            defaultValue = "png")
+    protected String diagramFormat;
+
+    /**
+     * Render a diagram as PNG if it cannot be rendered in the diagram format.
+     */
+    @Parameter(property = "confluence.diagramPngFallback",
+            defaultValue = "true")
+    protected boolean diagramPngFallback;
+
+    /**
+     * Directory of rendered PlantUML diagrams, which may be shared by several
+     * projects.
+     */
+    @Parameter(property = "confluence.diagramCache",
+            defaultValue = "${user.home}/.m2/cpages/diagrams")
+    protected File diagramCache;
+
+    /**
+     * Size in megabytes beyond which the least recently used diagrams are
+     * deleted from the diagram cache.
+     */
+    @Parameter(property = "confluence.diagramCacheSize",
+            defaultValue = "256")
+    protected long diagramCacheSize;
+
+    /**
+     * Record a timeline of preview builds in the trace file.
+     */
+    @Parameter(property = "confluence.trace",
+            defaultValue = "false")
+    protected boolean trace;
+
+    /**
+     * Timeline of preview builds in the Chrome trace event format, written
+     * after the first build and again on exit.
+     */
+    @Parameter(property = "confluence.traceFile",
+            defaultValue = "${project.build.directory}/cpages-preview-trace.json")
+    protected File traceFile;
+
     @Override
     public void execute() throws MojoExecutionException {
         if (!srcDir.isDirectory()) {
             throw new MojoExecutionException("No src dir " + srcDir);
         }
 
-        PreviewLauncher launcher = new PreviewLauncher(previewDir.toPath());
-        PreviewBuilder previewBuilder = new PreviewBuilder(
-                srcDir.toPath(), previewDir.toPath(), launcher);
-
+        FileFormat format;
+        MarkdownEngine engine;
         try {
-            previewBuilder.buildAll().stream()
-                    .forEach(htmlFile -> launcher.launch(htmlFile));
-        } catch (IOException ex) {
-            throw new MojoExecutionException("Markdown conversion failed", ex);
+            format = PlantUml.format(diagramFormat);
+            engine = MarkdownEngine.named(markdownEngine);
         } catch (IllegalArgumentException ex) {
-            throw new MojoExecutionException("Bad wiki dir", ex);
+            throw new MojoExecutionException(ex.getMessage(), ex);
         }
 
-        new PreviewWatcher(srcDir.toPath(), previewBuilder).start();
+        PreviewLauncher launcher = new PreviewLauncher(previewDir.toPath());
+        Trace timeline = trace ? new Trace() : Trace.OFF;
+        // closing evicts old diagrams from the shared cache
+        try (PlantUml plantUml = new PlantUml(diagramThreads > 0
+                ? diagramThreads
+                : Runtime.getRuntime().availableProcessors(),
+                diagramTimeout, format, diagramPngFallback,
+                diagramCache, diagramCacheSize * 1024 * 1024)) {
+            PreviewBuilder previewBuilder = new PreviewBuilder(
+                    srcDir.toPath(), previewDir.toPath(), launcher, plantUml,
+                    engine, timeline);
+
+            try {
+                previewBuilder.buildAll().stream()
+                        .forEach(htmlFile -> launcher.launch(htmlFile));
+                plantUml.report();
+                writeTrace(timeline);
+            } catch (IOException ex) {
+                throw new MojoExecutionException("Markdown conversion failed",
+                        ex);
+            } catch (IllegalArgumentException ex) {
+                throw new MojoExecutionException("Bad wiki dir", ex);
+            }
 
+            new PreviewWatcher(srcDir.toPath(), previewBuilder).start();
+
+            try {
+                System.in.read();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                writeTrace(timeline);
+            }
+        }
+    }
+
+    private void writeTrace(Trace timeline) {
+        if (!timeline.isEnabled()) {
+            return;
+        }
         try {
-            System.in.read();
+            timeline.write(traceFile);
+            log.info("Wrote trace to {}", traceFile);
         } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            log.warn("Cannot write trace", ex);
         }
     }
 }
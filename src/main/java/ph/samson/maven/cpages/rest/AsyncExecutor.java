@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glassfish.jersey.client.ClientAsyncExecutor;
+import org.glassfish.jersey.spi.ExecutorServiceProvider;
+
+/**
+ * Threads that run the asynchronous requests of a client. Jersey would start
+ * its own, which outlive the client, so these are owned by {@link Confluence}
+ * and stopped when it is closed.
+ */
+@ClientAsyncExecutor
+class AsyncExecutor implements ExecutorServiceProvider, AutoCloseable {
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final ExecutorService threads;
+
+    /**
+     * @param size number of threads
+     */
+    AsyncExecutor(int size) {
+        threads = Executors.newFixedThreadPool(size, task -> {
+            Thread thread = new Thread(task,
+                    "confluence-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public ExecutorService getExecutorService() {
+        return threads;
+    }
+
+    @Override
+    public void dispose(ExecutorService executorService) {
+        executorService.shutdown();
+    }
+
+    /**
+     * Stop the threads once the requests they run are done.
+     */
+    @Override
+    public void close() {
+        threads.shutdown();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import java.io.IOException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import ph.samson.maven.cpages.metrics.Metrics;
+
+/**
+ * Counts the bytes of request and response bodies. Interceptors run on the
+ * entity before it is compressed or after it is decompressed, so these are
+ * the uncompressed body bytes, not the bytes on the wire.
+ */
+class ByteCounter implements ReaderInterceptor, WriterInterceptor {
+
+    private final Metrics metrics;
+
+    ByteCounter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context)
+            throws IOException, WebApplicationException {
+        CountingInputStream in = new CountingInputStream(
+                context.getInputStream());
+        context.setInputStream(in);
+        try {
+            return context.proceed();
+        } finally {
+            metrics.addReceivedBytes(in.getCount());
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context)
+            throws IOException, WebApplicationException {
+        CountingOutputStream out = new CountingOutputStream(
+                context.getOutputStream());
+        context.setOutputStream(out);
+        try {
+            context.proceed();
+        } finally {
+            metrics.addSentBytes(out.getCount());
+        }
+    }
+}
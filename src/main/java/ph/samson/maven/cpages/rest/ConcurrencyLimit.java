@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Number of requests allowed in flight, adjusted to what the server can take.
+ *
+ * The limit grows by about one for every limit's worth of requests that
+ * complete in healthy time, meaning within twice the fastest time seen for the
+ * same kind of request, and is halved when the server throttles. Only one
+ * decrease is made for the requests that were in flight when throttling
+ * started. All requests can also be paused for as long as the server asks.
+ *
+ * Asynchronous requests wait in a queue instead of blocking a thread, and
+ * take turns with blocking ones as requests complete. Blocking requests wait
+ * on a {@link Lock} rather than a monitor, which would pin a virtual thread to
+ * its carrier. Once closed, or once the timer no longer takes tasks, waiting
+ * asynchronous requests fail.
+ */
+class ConcurrencyLimit {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(ConcurrencyLimit.class);
+
+    /**
+     * Latency, relative to the fastest seen, up to which the limit is
+     * increased.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * Factor the limit is multiplied by when throttled.
+     */
+    private static final double BACKOFF = 0.5;
+
+    private final int max;
+    private final ScheduledExecutorService timer;
+    private final Ticker ticker;
+    private final Map<String, Long> minLatency = new HashMap<>();
+    private final Deque<CompletableFuture<Long>> waiting = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long pausedUntil;
+    private boolean wakeUpScheduled;
+    private boolean closed;
+
+    /**
+     * @param max maximum number of requests in flight, the limit starts at
+     * half of it
+     * @param timer lets waiting asynchronous requests through after a pause
+     */
+    ConcurrencyLimit(int max, ScheduledExecutorService timer) {
+        this(max, timer, Ticker.systemTicker());
+    }
+
+    /**
+     * @param max maximum number of requests in flight, the limit starts at
+     * half of it
+     * @param timer lets waiting asynchronous requests through after a pause
+     * @param ticker source of request times
+     */
+    ConcurrencyLimit(int max, ScheduledExecutorService timer, Ticker ticker) {
+        this.max = Math.max(1, max);
+        this.timer = timer;
+        this.ticker = ticker;
+        this.limit = Math.max(1, max / 2);
+        this.lastDecrease = ticker.read();
+        this.pausedUntil = lastDecrease;
+    }
+
+    /**
+     * Wait until another request may be sent.
+     *
+     * @return start time of the request, to pass to
+     * {@link #release(String, long, boolean)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long pause = pausedUntil - ticker.read();
+                if (pause > 0) {
+                    changed.awaitNanos(pause);
+                } else if (inFlight >= (int) limit) {
+                    changed.await();
+                } else {
+                    break;
+                }
+            }
+            inFlight++;
+            return ticker.read();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a turn to send another request without blocking.
+     *
+     * @return completed with the start time of the request, to pass to
+     * {@link #release(String, long, boolean)}, once it may be sent, or with
+     * an {@link IllegalStateException} if closed first
+     */
+    CompletableFuture<Long> acquireAsync() {
+        CompletableFuture<Long> turn = new CompletableFuture<>();
+        lock.lock();
+        try {
+            waiting.add(turn);
+        } finally {
+            lock.unlock();
+        }
+        admit();
+        return turn;
+    }
+
+    /**
+     * Let waiting asynchronous requests through while there is room, or fail
+     * them all if closed. They are completed outside the lock, as starting
+     * one may run its request.
+     */
+    private void admit() {
+        List<CompletableFuture<Long>> admitted = new ArrayList<>();
+        List<CompletableFuture<Long>> rejected = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!waiting.isEmpty()) {
+                if (closed) {
+                    rejected.addAll(waiting);
+                    waiting.clear();
+                    break;
+                }
+                long pause = pausedUntil - ticker.read();
+                if (pause > 0) {
+                    if (!wakeUpScheduled) {
+                        try {
+                            timer.schedule(this::wakeUp, pause,
+                                    TimeUnit.NANOSECONDS);
+                            wakeUpScheduled = true;
+                        } catch (RejectedExecutionException ex) {
+                            closed = true;
+                            continue;
+                        }
+                    }
+                    break;
+                } else if (inFlight >= (int) limit) {
+                    break;
+                }
+                inFlight++;
+                admitted.add(waiting.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Long> turn : admitted) {
+            turn.complete(ticker.read());
+        }
+        for (CompletableFuture<Long> turn : rejected) {
+            turn.completeExceptionally(new IllegalStateException(
+                    "Closed while waiting for a turn"));
+        }
+    }
+
+    private void wakeUp() {
+        lock.lock();
+        try {
+            wakeUpScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        admit();
+    }
+
+    /**
+     * Record the outcome of a request and let others be sent.
+     *
+     * @param name kind of request
+     * @param start value returned by {@link #acquire()}
+     * @param throttled whether the server rejected the request as overloaded,
+     * or did not respond
+     */
+    void release(String name, long start, boolean throttled) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = ticker.read();
+            if (throttled) {
+                if (start - lastDecrease > 0) {
+                    limit = Math.max(1, limit * BACKOFF);
+                    lastDecrease = now;
+                    log.info("Throttled, sending at most {} requests at once",
+                            (int) limit);
+                }
+            } else {
+                long latency = now - start;
+                long fastest = Math.min(latency,
+                        minLatency.getOrDefault(name, Long.MAX_VALUE));
+                minLatency.put(name, fastest);
+                if (latency <= fastest * TOLERANCE && limit < max) {
+                    limit = Math.min(max, limit + 1 / limit);
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        admit();
+    }
+
+    /**
+     * Hold back all requests.
+     *
+     * @param millis time to wait before sending any request
+     */
+    void pause(long millis) {
+        long until = ticker.read() + TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try {
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail the asynchronous requests waiting for a turn, and any asked for
+     * later.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        admit();
+    }
+
+    /**
+     * @return current limit
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
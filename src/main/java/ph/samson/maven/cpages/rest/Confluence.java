@@ -17,171 +17,668 @@
 package ph.samson.maven.cpages.rest;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.message.GZipEncoder;
+import org.glassfish.jersey.media.multipart.Boundary;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
 import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.metrics.Metrics;
 import ph.samson.maven.cpages.rest.model.Attachment;
 import ph.samson.maven.cpages.rest.model.AttachmentsResult;
+import ph.samson.maven.cpages.rest.model.ContentProperties;
+import ph.samson.maven.cpages.rest.model.ContentProperty;
 import ph.samson.maven.cpages.rest.model.GetPageResults;
+import ph.samson.maven.cpages.rest.model.Metadata;
 import ph.samson.maven.cpages.rest.model.Page;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+import ph.samson.maven.cpages.rest.model.Space;
 import ph.samson.maven.cpages.rest.model.Version;
 
 import static com.cedarsoftware.util.io.JsonWriter.formatJson;
 import static com.cedarsoftware.util.io.JsonWriter.objectToJson;
 import static com.google.common.hash.Hashing.sha1;
-import static java.nio.file.Files.readAllBytes;
 
 /**
  * Confluence REST API client
  *
+ * Requests that take a single round trip can also be sent asynchronously by
+ * the {@code Async} variant of their method. Asynchronous requests wait for
+ * their turn and their retries without holding a thread, and fail their
+ * future with the exception the blocking variant would throw.
+ *
+ * Each request expands only what its callers use. Created and updated pages
+ * are read as a {@link PageHandle}, so the body Confluence echoes back is not
+ * kept.
+ *
  * @see https://developer.atlassian.com/confdev/confluence-rest-api
  */
-public class Confluence {
+public class Confluence implements AutoCloseable {
 
     private static final Logger log
             = LoggerFactory.getLogger(Confluence.class);
 
+    /**
+     * Number of results to request per page of a listing. The server may
+     * return fewer.
+     */
+    private static final int LIST_LIMIT = 100;
+
+    /**
+     * Content property holding the content hash of a page when it is
+     * created.
+     */
+    private static final String FINGERPRINT = "cpages";
+
+    /**
+     * What is expanded of pages that may be updated: the version, and the
+     * content hash of a first version. The space is known to the caller, and
+     * leaving out the ancestors keeps a page where it is when updated.
+     */
+    private static final String PAGE_EXPAND = "version,metadata.properties."
+            + FINGERPRINT;
+
+    /**
+     * Maximum number of connections used by the single argument
+     * constructor.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /**
+     * Number of retries used by the single argument constructor.
+     */
+    private static final int DEFAULT_RETRIES = 5;
+
     private final Client client;
     private final WebTarget webTarget;
+    private final RequestExecutor executor;
+    private final AsyncExecutor asyncExecutor;
 
     public Confluence(String baseUri, String username, String password) {
-        client = ClientBuilder.newBuilder()
+        this(baseUri, username, password, Transport.POOLED,
+                DEFAULT_MAX_CONNECTIONS, DEFAULT_RETRIES, new Metrics());
+    }
+
+    /**
+     * @param baseUri REST API endpoint
+     * @param username user to authenticate as
+     * @param password password of the user
+     * @param transport HTTP connector to use
+     * @param maxConnections maximum number of connections to the server, of
+     * requests in flight and of threads running asynchronous requests
+     * @param retries number of times a throttled or failed request is retried
+     * @param metrics records requests
+     */
+    public Confluence(String baseUri, String username, String password,
+            Transport transport, int maxConnections, int retries,
+            Metrics metrics) {
+        asyncExecutor = new AsyncExecutor(maxConnections);
+        ClientConfig config = new ClientConfig()
                 .register(HttpAuthenticationFeature.basic(username, password))
                 .register(MultiPartFeature.class)
-                .build();
+                // ask for compressed responses
+                .register(EncodingFilter.class)
+                .register(GZipEncoder.class)
+                .register(new ByteCounter(metrics),
+                        Priorities.HEADER_DECORATOR)
+                // no more requests are in flight than connections
+                .register(asyncExecutor);
+        transport.configure(config, maxConnections);
+        client = ClientBuilder.newClient(config);
         webTarget = client.target(baseUri).path("content");
+        executor = new RequestExecutor(maxConnections, retries, metrics);
     }
 
     public Page getPage(String spaceKey, String title) {
+        return execute(getPageCall(spaceKey, title));
+    }
+
+    /**
+     * @param spaceKey space to look in
+     * @param title page title
+     * @return completed with the page, or null if there is none
+     * @see #getPage(String, String)
+     */
+    public CompletableFuture<Page> getPageAsync(String spaceKey,
+            String title) {
+        return submit(getPageCall(spaceKey, title));
+    }
+
+    private Call<Page> getPageCall(String spaceKey, String title) {
         WebTarget w = webTarget.queryParam("spaceKey", spaceKey)
-                .queryParam("expand", "space,ancestors,version")
+                .queryParam("expand", PAGE_EXPAND)
                 .queryParam("title", title);
         log.debug("requesting: {}", w.getUri());
-        Response response = w.request(MediaType.APPLICATION_JSON_TYPE).get();
-        int status = response.getStatus();
+        return new Call<>("getPage", true,
+                () -> w.request(MediaType.APPLICATION_JSON_TYPE).buildGet(),
+                response -> {
+                    GetPageResults results = read("getPage", response,
+                            GetPageResults.class);
+                    if (results.getSize() == 0) {
+                        return null;
+                    }
+                    if (results.getSize() > 1) {
+                        log.warn("Query returned more than one page.");
+                    }
+                    Page result = results.getResults().get(0);
+                    result.setSpace(space(spaceKey));
+                    result.get_links().setBase(
+                            results.get_links().getBase());
+                    return result;
+                });
+    }
 
-        logDebug(response, status);
+    /**
+     * Get all pages under the given parent, or all pages in the space if
+     * there is no parent.
+     *
+     * Only the version and content hash of the pages are included.
+     *
+     * @param spaceKey space to list
+     * @param parentId parent page, may be null
+     * @return pages under the parent or in the space
+     */
+    public List<Page> getPages(String spaceKey, String parentId) {
+        WebTarget listing = parentId == null
+                ? webTarget.queryParam("spaceKey", spaceKey)
+                .queryParam("type", "page")
+                : webTarget.path(parentId).path("descendant").path("page");
+        listing = listing.queryParam("expand", PAGE_EXPAND);
+
+        List<Page> pages = new ArrayList<>();
+        GetPageResults results;
+        do {
+            WebTarget w = listing.queryParam("start", pages.size())
+                    .queryParam("limit", LIST_LIMIT);
+            log.debug("requesting: {}", w.getUri());
+            results = read("getPages", true,
+                    () -> w.request(MediaType.APPLICATION_JSON_TYPE)
+                    .buildGet(),
+                    GetPageResults.class);
+            for (Page page : results.getResults()) {
+                page.setSpace(space(spaceKey));
+                page.get_links().setBase(results.get_links().getBase());
+                pages.add(page);
+            }
+        } while (results.getSize() > 0
+                && results.getSize() >= results.getLimit());
 
-        GetPageResults results = response.readEntity(GetPageResults.class);
-        if (results.getSize() == 0) {
-            return null;
-        } else {
-            if (results.getSize() > 1) {
-                log.warn("Query returned more than one page.");
+        log.info("Listed {} pages under {}", pages.size(),
+                parentId == null ? spaceKey : parentId);
+        return pages;
+    }
+
+    /**
+     * Look up several pages by title in a single search.
+     *
+     * Search results come from the search index of Confluence, which is
+     * updated shortly after a change, so a page created or renamed moments
+     * ago may be missing.
+     *
+     * @param spaceKey space to look in
+     * @param titles page titles
+     * @return pages found, by title
+     */
+    public Map<String, Page> findPages(String spaceKey,
+            Collection<String> titles) {
+        WebTarget search = webTarget.path("search")
+                .queryParam("cql", "space = " + quote(spaceKey)
+                        + " and type = page and title in ("
+                        + titles.stream().map(Confluence::quote)
+                        .collect(Collectors.joining(", ")) + ")")
+                .queryParam("expand", PAGE_EXPAND);
+
+        Map<String, Page> pages = new HashMap<>();
+        GetPageResults results;
+        int start = 0;
+        do {
+            WebTarget w = search.queryParam("start", start)
+                    .queryParam("limit", LIST_LIMIT);
+            log.debug("requesting: {}", w.getUri());
+            results = read("findPages", true,
+                    () -> w.request(MediaType.APPLICATION_JSON_TYPE)
+                    .buildGet(),
+                    GetPageResults.class);
+            for (Page page : results.getResults()) {
+                page.setSpace(space(spaceKey));
+                page.get_links().setBase(results.get_links().getBase());
+                // the search matches titles regardless of case
+                if (titles.contains(page.getTitle())) {
+                    pages.put(page.getTitle(), page);
+                }
             }
-            Page result = results.getResults().get(0);
-            result.get_links().setBase(results.get_links().getBase());
-            return result;
-        }
+            start += results.getResults().size();
+        } while (results.getSize() > 0
+                && results.getSize() >= results.getLimit());
+
+        log.debug("Found {} of {} pages", pages.size(), titles.size());
+        return pages;
     }
 
-    public Page createChildPage(String spaceKey, String parentId, String title,
-            String wikiText) {
+    public PageHandle createChildPage(String spaceKey, String parentId,
+            String title, String wikiText) {
+        return createChildPage(spaceKey, parentId, title,
+                new StorageBody(wikiText));
+    }
+
+    /**
+     * Create a page with a body that is streamed to Confluence.
+     *
+     * @param spaceKey space to create the page in
+     * @param parentId parent page, may be null
+     * @param title page title
+     * @param body page body
+     * @return the created page
+     */
+    public PageHandle createChildPage(String spaceKey, String parentId,
+            String title, StorageBody body) {
+        return execute(createChildPageCall(spaceKey, parentId, title, body));
+    }
+
+    /**
+     * @param spaceKey space to create the page in
+     * @param parentId parent page, may be null
+     * @param title page title
+     * @param body page body
+     * @return completed with the created page
+     * @see #createChildPage(String, String, String, StorageBody)
+     */
+    public CompletableFuture<PageHandle> createChildPageAsync(
+            String spaceKey, String parentId, String title,
+            StorageBody body) {
+        return submit(createChildPageCall(spaceKey, parentId, title, body));
+    }
+
+    private Call<PageHandle> createChildPageCall(String spaceKey,
+            String parentId, String title, StorageBody body) {
         /*
-         * Since it is not possible to set a Version message when creating a
-         * new page, we have nowhere to place the content hash.
-         * Instead, we create with an empty body and immediately update with
-         * the actual body so we get the content hash in Version 2.
+         * It is not possible to set a Version message when creating a new
+         * page so the content hash of the first version goes into a content
+         * property instead. Later versions have it in the Version message.
          */
-        Page page = new Page(spaceKey, parentId, title, "New Page.", "storage");
+        Page page = new Page(spaceKey, parentId, title, null, "storage");
+        ContentProperties properties = new ContentProperties();
+        properties.setCpages(new ContentProperty(FINGERPRINT,
+                body.getHash()));
+        Metadata metadata = new Metadata();
+        metadata.setProperties(properties);
+        page.setMetadata(metadata);
         if (log.isDebugEnabled()) {
             log.debug("createPage: {}", objectToJson(page));
         }
-        Response response = webTarget.request().post(Entity.json(page));
-        int status = response.getStatus();
-        logDebug(response, status);
-
-        return updatePage(response.readEntity(Page.class), wikiText);
+        return new Call<>("createPage", false,
+                () -> webTarget.request().buildPost(Entity.entity(
+                        new PageEntity(page, body),
+                        MediaType.APPLICATION_JSON_TYPE)),
+                entity("createPage", PageHandle.class));
     }
 
-    public Page createPage(String spaceKey, String title, String wikiText) {
+    public PageHandle createPage(String spaceKey, String title,
+            String wikiText) {
         return createChildPage(spaceKey, null, title, wikiText);
     }
 
-    public Page updatePage(Page page, String newWikiText) {
-        String hash = sha1().hashUnencodedChars(newWikiText).toString();
-        if (hash.equals(page.getVersion().getMessage())) {
+    public PageHandle createPage(String spaceKey, String title,
+            StorageBody body) {
+        return createChildPage(spaceKey, null, title, body);
+    }
+
+    public CompletableFuture<PageHandle> createPageAsync(String spaceKey,
+            String title, StorageBody body) {
+        return createChildPageAsync(spaceKey, null, title, body);
+    }
+
+    /**
+     * Update the body of an existing page.
+     *
+     * @param page page to update, with the current version number
+     * @param newWikiText new body in storage format
+     * @return the updated page, or the given page if the body is unchanged
+     * @throws ClientErrorException if the page cannot be updated, such as when
+     * it no longer exists or the version number is outdated
+     */
+    public PageHandle updatePage(Page page, String newWikiText) {
+        return updatePage(page, new StorageBody(newWikiText));
+    }
+
+    /**
+     * Update the body of an existing page, streaming the new body to
+     * Confluence.
+     *
+     * @param page page to update, with the current version number
+     * @param body new body
+     * @return the updated page, or the given page if the body is unchanged
+     * @throws ClientErrorException if the page cannot be updated, such as when
+     * it no longer exists or the version number is outdated
+     */
+    public PageHandle updatePage(Page page, StorageBody body) {
+        return unchanged(page, body) ? new PageHandle(page)
+                : execute(updatePageCall(page, body));
+    }
+
+    /**
+     * @param page page to update, with the current version number
+     * @param body new body
+     * @return completed with the updated page, or the given page if the body
+     * is unchanged
+     * @see #updatePage(Page, StorageBody)
+     */
+    public CompletableFuture<PageHandle> updatePageAsync(Page page,
+            StorageBody body) {
+        return unchanged(page, body)
+                ? CompletableFuture.completedFuture(new PageHandle(page))
+                : submit(updatePageCall(page, body));
+    }
+
+    private static boolean unchanged(Page page, StorageBody body) {
+        if (body.getHash().equals(fingerprint(page))) {
             log.info("No changes to {} body", page.getTitle());
-            return page;
+            return true;
         }
+        return false;
+    }
 
+    private Call<PageHandle> updatePageCall(Page page, StorageBody body) {
+        String hash = body.getHash();
         WebTarget pageTarget = webTarget.path(page.getId());
 
-        page.getBody().getStorage().setValue(newWikiText);
         page.getBody().getStorage().setRepresentation("storage");
         Version version = new Version(page.getVersion().getNumber() + 1);
         version.setMessage(hash);
         page.setVersion(version);
-        if (page.getAncestors().size() > 1) {
+        page.setMetadata(null);
+        if (page.getAncestors() != null && page.getAncestors().size() > 1) {
             page.setAncestors(ImmutableList.of(page.getAncestors().get(
                     page.getAncestors().size() - 1)));
         }
-        Response response = pageTarget.request().put(Entity.json(page));
-        int status = response.getStatus();
+        return new Call<>("updatePage", true,
+                () -> pageTarget.request().buildPut(Entity.entity(
+                        new PageEntity(page, body),
+                        MediaType.APPLICATION_JSON_TYPE)),
+                response -> {
+                    if (response.getStatusInfo().getFamily()
+                            == Response.Status.Family.CLIENT_ERROR) {
+                        logDebug(response, response.getStatus());
+                        response.close();
+                        throw new ClientErrorException("Cannot update "
+                                + page.getTitle(), response);
+                    }
+                    return read("updatePage", response, PageHandle.class);
+                });
+    }
 
-        logDebug(response, status);
+    /**
+     * The space of a page, which is not expanded as the caller knows it.
+     */
+    private static Space space(String spaceKey) {
+        Space space = new Space();
+        space.setKey(spaceKey);
+        return space;
+    }
 
-        return response.readEntity(Page.class);
+    /**
+     * Get the content hash recorded for the current version of a page.
+     *
+     * @param page page with expanded version and content hash
+     * @return content hash, null if none is recorded
+     */
+    private static String fingerprint(Page page) {
+        if (page.getVersion().getNumber() == 1) {
+            Metadata metadata = page.getMetadata();
+            if (metadata != null && metadata.getProperties() != null
+                    && metadata.getProperties().getCpages() != null) {
+                return metadata.getProperties().getCpages().getValue();
+            }
+            return null;
+        }
+        return page.getVersion().getMessage();
     }
 
     public AttachmentsResult getAttachments(String pageId) {
+        return execute(getAttachmentsCall(pageId));
+    }
+
+    /**
+     * @param pageId page to list attachments of
+     * @return completed with the first attachments of the page
+     * @see #getAttachments(String)
+     */
+    public CompletableFuture<AttachmentsResult> getAttachmentsAsync(
+            String pageId) {
+        return submit(getAttachmentsCall(pageId));
+    }
+
+    private Call<AttachmentsResult> getAttachmentsCall(String pageId) {
         WebTarget attachment = webTarget.path(pageId).path("child")
                 .path("attachment")
-                .queryParam("expand", "container,version");
+                .queryParam("expand", "version");
         log.debug("requesting: {}", attachment.getUri());
-        Response response = attachment
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get();
-        int status = response.getStatus();
+        return new Call<>("getAttachments", true,
+                () -> attachment.request(MediaType.APPLICATION_JSON_TYPE)
+                .buildGet(),
+                response -> contained(pageId, read("getAttachments",
+                        response, AttachmentsResult.class)));
+    }
+
+    /**
+     * Point listed attachments at their page, instead of having each one
+     * carry an expanded copy of it.
+     */
+    private static AttachmentsResult contained(String pageId,
+            AttachmentsResult results) {
+        Page container = new Page(pageId);
+        for (Attachment attachment : results.getResults()) {
+            attachment.setContainer(container);
+        }
+        return results;
+    }
+
+    /**
+     * Get all attachments of a page.
+     *
+     * @param pageId page to list attachments of
+     * @return all attachments, across as many requests as needed
+     */
+    public List<Attachment> getAllAttachments(String pageId) {
+        WebTarget listing = webTarget.path(pageId).path("child")
+                .path("attachment")
+                .queryParam("expand", "version");
+
+        List<Attachment> attachments = new ArrayList<>();
+        AttachmentsResult results;
+        do {
+            WebTarget w = listing.queryParam("start", attachments.size())
+                    .queryParam("limit", LIST_LIMIT);
+            log.debug("requesting: {}", w.getUri());
+            results = contained(pageId, read("getAttachments", true,
+                    () -> w.request(MediaType.APPLICATION_JSON_TYPE)
+                    .buildGet(),
+                    AttachmentsResult.class));
+            attachments.addAll(results.getResults());
+        } while (results.getSize() > 0
+                && results.getSize() >= results.getLimit());
+
+        return attachments;
+    }
 
-        logDebug(response, status);
+    /**
+     * Get all attachments of several pages in a single search.
+     *
+     * Search results come from the search index of Confluence, which is
+     * updated shortly after a change, so an attachment uploaded moments ago
+     * may be missing.
+     *
+     * @param pageIds pages to list attachments of
+     * @return attachments by page, only of pages that have any
+     */
+    public Map<String, List<Attachment>> findAttachments(
+            Collection<String> pageIds) {
+        WebTarget search = webTarget.path("search")
+                .queryParam("cql", "type = attachment and container in ("
+                        + pageIds.stream().map(Confluence::quote)
+                        .collect(Collectors.joining(", ")) + ")")
+                .queryParam("expand", "container,version,metadata");
+
+        Map<String, List<Attachment>> attachments = new HashMap<>();
+        AttachmentsResult results;
+        int start = 0;
+        do {
+            WebTarget w = search.queryParam("start", start)
+                    .queryParam("limit", LIST_LIMIT);
+            log.debug("requesting: {}", w.getUri());
+            results = read("findAttachments", true,
+                    () -> w.request(MediaType.APPLICATION_JSON_TYPE)
+                    .buildGet(),
+                    AttachmentsResult.class);
+            for (Attachment attachment : results.getResults()) {
+                attachments.computeIfAbsent(
+                        attachment.getContainer().getId(),
+                        id -> new ArrayList<>()).add(attachment);
+            }
+            start += results.getResults().size();
+        } while (results.getSize() > 0
+                && results.getSize() >= results.getLimit());
+
+        return attachments;
+    }
 
-        return response.readEntity(AttachmentsResult.class);
+    /**
+     * Quote a value for use in CQL.
+     */
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                + '"';
     }
 
     public AttachmentsResult createAttachments(String pageId, File... files)
             throws IOException {
+        Map<File, String> hashed = new LinkedHashMap<>();
+        for (File fileEntity : files) {
+            hashed.put(fileEntity, Files.hash(fileEntity, sha1()).toString());
+        }
+        return createAttachments(pageId, hashed);
+    }
+
+    /**
+     * Upload new attachments in a single request.
+     *
+     * @param pageId page to attach to
+     * @param files files to upload mapped to their content hash
+     * @return the created attachments
+     */
+    public AttachmentsResult createAttachments(String pageId,
+            Map<File, String> files) {
+        return execute(createAttachmentsCall(pageId, files));
+    }
+
+    /**
+     * @param pageId page to attach to
+     * @param files files to upload mapped to their content hash
+     * @return completed with the created attachments
+     * @see #createAttachments(String, Map)
+     */
+    public CompletableFuture<AttachmentsResult> createAttachmentsAsync(
+            String pageId, Map<File, String> files) {
+        return submit(createAttachmentsCall(pageId, files));
+    }
+
+    private Call<AttachmentsResult> createAttachmentsCall(String pageId,
+            Map<File, String> files) {
         WebTarget attachment = webTarget.path(pageId).path("child")
                 .path("attachment");
 
         FormDataMultiPart multiPart = new FormDataMultiPart();
-        for (File fileEntity : files) {
-            log.info("Creating attachment {}", fileEntity);
-            multiPart.bodyPart(new FileDataBodyPart("file", fileEntity));
-            multiPart.field("comment", sha1().hashBytes(
-                    readAllBytes(fileEntity.toPath())).toString());
+        for (Map.Entry<File, String> file : files.entrySet()) {
+            log.info("Creating attachment {}", file.getKey());
+            multiPart.bodyPart(new FileDataBodyPart("file", file.getKey()));
+            multiPart.field("comment", file.getValue());
         }
 
-        Response response = attachment.request(MediaType.APPLICATION_JSON_TYPE)
+        return new Call<>("createAttachments", false,
+                () -> attachment.request(MediaType.APPLICATION_JSON_TYPE)
                 .header("X-Atlassian-Token", "no-check")
-                .post(Entity.entity(multiPart, multiPart.getMediaType()));
-        int status = response.getStatus();
-
-        logDebug(response, status);
+                .header("MIME-Version", "1.0")
+                .buildPost(Entity.entity(multiPart, boundary(multiPart))),
+                entity("createAttachments", AttachmentsResult.class));
+    }
 
-        return response.readEntity(AttachmentsResult.class);
+    /**
+     * Media type of a multipart entity with its boundary, which the Apache
+     * connector would otherwise leave out of the request headers.
+     * <p>
+     * For the same reason these requests set MIME-Version themselves, which
+     * MultiPartWriter would only add after the headers were sent.
+     */
+    private static MediaType boundary(FormDataMultiPart multiPart) {
+        return Boundary.addBoundary(multiPart.getMediaType());
     }
 
     public AttachmentsResult updateAttachment(Attachment attachment,
             File fileEntity) throws IOException {
-        String hash = sha1().hashBytes(
-                readAllBytes(fileEntity.toPath())).toString();
+        String hash = Files.hash(fileEntity, sha1()).toString();
         if (hash.equals(attachment.getMetadata().getComment())) {
             log.info("No changes to attachment {}", attachment.getTitle());
             return null;
         }
 
+        return updateAttachment(attachment, fileEntity, hash);
+    }
+
+    /**
+     * Upload new data for an existing attachment.
+     *
+     * @param attachment attachment to update
+     * @param fileEntity new data
+     * @param hash content hash of the new data
+     * @return the updated attachment
+     */
+    public AttachmentsResult updateAttachment(Attachment attachment,
+            File fileEntity, String hash) {
+        return execute(updateAttachmentCall(attachment, fileEntity, hash));
+    }
+
+    /**
+     * @param attachment attachment to update
+     * @param fileEntity new data
+     * @param hash content hash of the new data
+     * @return completed with the updated attachment
+     * @see #updateAttachment(Attachment, File, String)
+     */
+    public CompletableFuture<AttachmentsResult> updateAttachmentAsync(
+            Attachment attachment, File fileEntity, String hash) {
+        return submit(updateAttachmentCall(attachment, fileEntity, hash));
+    }
+
+    private Call<AttachmentsResult> updateAttachmentCall(
+            Attachment attachment, File fileEntity, String hash) {
         WebTarget data = webTarget.path(attachment.getContainer().getId())
                 .path("child").path("attachment")
                 .path(attachment.getId())
@@ -192,17 +689,200 @@ public class Confluence {
         multiPart.bodyPart(new FileDataBodyPart("file", fileEntity));
         multiPart.field("comment", hash);
 
-        Response response = data.request(MediaType.APPLICATION_JSON_TYPE)
+        return new Call<>("updateAttachment", false,
+                () -> data.request(MediaType.APPLICATION_JSON_TYPE)
                 .header("X-Atlassian-Token", "no-check")
-                .post(Entity.entity(multiPart, multiPart.getMediaType()));
-        int status = response.getStatus();
+                .header("MIME-Version", "1.0")
+                .buildPost(Entity.entity(multiPart, boundary(multiPart))),
+                entity("updateAttachment", AttachmentsResult.class));
+    }
+
+    /**
+     * Change the file name of an attachment without uploading its data
+     * again.
+     *
+     * @param attachment attachment to rename
+     * @param title new file name
+     * @return the renamed attachment
+     */
+    public Attachment renameAttachment(Attachment attachment, String title) {
+        return execute(renameAttachmentCall(attachment, title));
+    }
+
+    /**
+     * @param attachment attachment to rename
+     * @param title new file name
+     * @return completed with the renamed attachment
+     * @see #renameAttachment(Attachment, String)
+     */
+    public CompletableFuture<Attachment> renameAttachmentAsync(
+            Attachment attachment, String title) {
+        return submit(renameAttachmentCall(attachment, title));
+    }
 
-        logDebug(response, status);
+    private Call<Attachment> renameAttachmentCall(Attachment attachment,
+            String title) {
+        WebTarget target = webTarget.path(attachment.getContainer().getId())
+                .path("child").path("attachment")
+                .path(attachment.getId());
+        log.info("Renaming attachment {} to {}", attachment.getTitle(), title);
+
+        Attachment renamed = new Attachment();
+        renamed.setId(attachment.getId());
+        renamed.setTitle(title);
+        renamed.setVersion(new Version(
+                attachment.getVersion().getNumber() + 1));
+        return new Call<>("renameAttachment", true,
+                () -> target.request(MediaType.APPLICATION_JSON_TYPE)
+                .buildPut(Entity.json(renamed)),
+                entity("renameAttachment", Attachment.class));
+    }
+
+    /**
+     * Delete an attachment.
+     *
+     * @param attachment attachment to delete
+     */
+    public void deleteAttachment(Attachment attachment) {
+        execute(deleteAttachmentCall(attachment));
+    }
+
+    /**
+     * @param attachment attachment to delete
+     * @return completed once the attachment is deleted
+     * @see #deleteAttachment(Attachment)
+     */
+    public CompletableFuture<Void> deleteAttachmentAsync(
+            Attachment attachment) {
+        return submit(deleteAttachmentCall(attachment));
+    }
+
+    private Call<Void> deleteAttachmentCall(Attachment attachment) {
+        WebTarget target = webTarget.path(attachment.getId());
+        log.info("Deleting attachment {}", attachment.getTitle());
+        return new Call<>("deleteAttachment", true,
+                () -> target.request().buildDelete(),
+                response -> {
+                    try {
+                        logDebug(response, response.getStatus());
+                        if (response.getStatus()
+                                != Response.Status.NOT_FOUND.getStatusCode()) {
+                            // already gone otherwise
+                            checkSuccess("deleteAttachment", response);
+                        }
+                        return null;
+                    } finally {
+                        response.close();
+                    }
+                });
+    }
+
+    /**
+     * A request and how to read its response, so it can be sent blocking or
+     * asynchronously.
+     */
+    private static class Call<T> {
+
+        private final String name;
+        private final boolean idempotent;
+        private final Supplier<Invocation> request;
+        private final Function<Response, T> reader;
+
+        /**
+         * @param name kind of request
+         * @param idempotent whether the request can be repeated if it is not
+         * known to have reached the server
+         * @param request builds the request, called again on each retry
+         * @param reader reads the response and closes it
+         */
+        Call(String name, boolean idempotent, Supplier<Invocation> request,
+                Function<Response, T> reader) {
+            this.name = name;
+            this.idempotent = idempotent;
+            this.request = request;
+            this.reader = reader;
+        }
+    }
+
+    private <T> T execute(Call<T> call) {
+        return call.reader.apply(executor.execute(call.name, call.idempotent,
+                call.request));
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        return executor.submit(call.name, call.idempotent, call.request)
+                .thenApply(call.reader);
+    }
+
+    private static <T> Function<Response, T> entity(String name,
+            Class<T> type) {
+        return response -> read(name, response, type);
+    }
+
+    /**
+     * Send a request and read the entity of its response.
+     *
+     * @param name kind of request
+     * @param idempotent whether the request can be repeated if it is not
+     * known to have reached the server
+     * @param request sends the request
+     * @param type entity type
+     * @return the entity
+     * @throws WebApplicationException if the request failed
+     */
+    private <T> T read(String name, boolean idempotent,
+            Supplier<Invocation> request, Class<T> type) {
+        return read(name, executor.execute(name, idempotent, request), type);
+    }
+
+    /**
+     * Read the entity of a successful response and close it, so its
+     * connection is released even if reading fails.
+     *
+     * @param name kind of request
+     * @param response response to read
+     * @param type entity type
+     * @return the entity
+     * @throws WebApplicationException if the response is a failure
+     */
+    private static <T> T read(String name, Response response,
+            Class<T> type) {
+        try {
+            logDebug(response, response.getStatus());
+            checkSuccess(name, response);
+            return response.readEntity(type);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static void checkSuccess(String name, Response response) {
+        Response.StatusType status = response.getStatusInfo();
+        String message = name + " failed: " + status.getStatusCode() + " "
+                + status.getReasonPhrase();
+        switch (status.getFamily()) {
+            case SUCCESSFUL:
+                return;
+            case CLIENT_ERROR:
+                throw new ClientErrorException(message, response);
+            case SERVER_ERROR:
+                throw new ServerErrorException(message, response);
+            default:
+                throw new WebApplicationException(message, response);
+        }
+    }
 
-        return response.readEntity(AttachmentsResult.class);
+    /**
+     * Release the connections and threads of this client.
+     */
+    @Override
+    public void close() {
+        executor.close();
+        client.close();
+        asyncExecutor.close();
     }
 
-    private void logDebug(Response response, int status) throws RuntimeException {
+    private static void logDebug(Response response, int status) {
         if (log.isDebugEnabled() && response.bufferEntity()) {
             String body = response.readEntity(String.class);
             log.debug("response: {}; {}", status, formatJson(body));
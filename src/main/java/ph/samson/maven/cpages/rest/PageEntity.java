@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.UUID;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.StreamingOutput;
+import org.eclipse.persistence.jaxb.rs.MOXyJsonProvider;
+import ph.samson.maven.cpages.rest.model.Page;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JSON of a page with its body streamed in.
+ *
+ * The page is marshalled with a placeholder for the body, which is then
+ * replaced by the escaped body as it is read, so a large body is never held
+ * in memory as a whole.
+ */
+class PageEntity implements StreamingOutput {
+
+    /**
+     * Marshals page envelopes, guarded by itself as its context cache is not
+     * thread safe.
+     */
+    private static final MOXyJsonProvider JSON = new MOXyJsonProvider();
+
+    private final Page page;
+    private final StorageBody body;
+
+    /**
+     * @param page page to send, without a body value
+     * @param body body of the page
+     */
+    PageEntity(Page page, StorageBody body) {
+        this.page = page;
+        this.body = body;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        String placeholder = UUID.randomUUID().toString();
+        page.getBody().getStorage().setValue(placeholder);
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        synchronized (JSON) {
+            JSON.writeTo(page, Page.class, Page.class, new Annotation[0],
+                    MediaType.APPLICATION_JSON_TYPE,
+                    new MultivaluedHashMap<>(), envelope);
+        }
+        page.getBody().getStorage().setValue(null);
+
+        String json = new String(envelope.toByteArray(), UTF_8);
+        int start = json.indexOf(placeholder);
+        Writer out = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+        out.write(json, 0, start);
+        try (Reader in = body.open()) {
+            escape(in, out);
+        }
+        out.write(json, start + placeholder.length(),
+                json.length() - start - placeholder.length());
+        // the output stream is closed by Jersey
+        out.flush();
+    }
+
+    /**
+     * Copy characters as the content of a JSON string.
+     */
+    private static void escape(Reader in, Writer out) throws IOException {
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            out.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.write(c);
+                        }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ph.samson.maven.cpages.metrics.Metrics;
+
+/**
+ * Sends requests within a {@link ConcurrencyLimit}, retrying those the server
+ * is too busy for.
+ *
+ * Throttled requests (429) and those failed by an overloaded server or proxy
+ * (502, 503, 504) are retried after the time given by their Retry-After
+ * header, or else after a random delay of up to an exponentially growing
+ * maximum. A Retry-After pauses all requests, not only the throttled one.
+ * Requests that are not safe to repeat are only retried after 429 and 503,
+ * which the server sends without acting on the request; a proxy may give up
+ * with 502 or 504 on a request the server went on to complete. Requests that
+ * fail to connect or to get a response are retried if they are safe to
+ * repeat.
+ *
+ * The time until each response, retries and failures are recorded in
+ * {@link Metrics} by the name of the request. Each attempt is a span of its
+ * own, so retries show up in a trace.
+ *
+ * Requests can also be sent asynchronously, in which case no thread waits
+ * for a turn to send or for a retry: both are scheduled instead.
+ */
+class RequestExecutor implements AutoCloseable {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(RequestExecutor.class);
+
+    /**
+     * Upper bound of the first retry delay in milliseconds, doubled for each
+     * further retry.
+     */
+    private static final long BASE_DELAY = 500;
+
+    /**
+     * Largest upper bound of a retry delay in milliseconds.
+     */
+    private static final long MAX_DELAY = 30_000;
+
+    /**
+     * Longest Retry-After in milliseconds that is waited for. A request the
+     * server asks to wait longer for fails instead.
+     */
+    private static final long MAX_RETRY_AFTER = 120_000;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final ScheduledExecutorService timer;
+    private final ConcurrencyLimit limit;
+    private final int retries;
+    private final Metrics metrics;
+
+    /**
+     * @param maxConcurrency maximum number of requests in flight
+     * @param retries number of times a request is retried
+     * @param metrics records requests
+     */
+    RequestExecutor(int maxConcurrency, int retries, Metrics metrics) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                1, task -> {
+                    Thread thread = new Thread(task, "confluence-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.timer = scheduler;
+        this.limit = new ConcurrencyLimit(maxConcurrency, timer);
+        this.retries = retries;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param name kind of request, for logging and metrics
+     * @param idempotent whether the request can be repeated if it is not
+     * known to have reached the server
+     * @param request builds the request, called again on each retry
+     * @return the response, which may be a failure if retries ran out
+     * @throws ProcessingException if the request failed without a response
+     */
+    Response execute(String name, boolean idempotent,
+            Supplier<Invocation> request) {
+        for (int attempt = 0;; attempt++) {
+            long start = acquire(name);
+            Response response = null;
+            ProcessingException failure = null;
+            try {
+                response = request.get().invoke();
+            } catch (ProcessingException ex) {
+                failure = ex;
+            }
+            long delay = retryDelay(name, idempotent, attempt, start,
+                    response, failure);
+            if (delay < 0) {
+                return response;
+            }
+            sleep(name, delay);
+        }
+    }
+
+    /**
+     * Send a request asynchronously.
+     *
+     * @param name kind of request, for logging and metrics
+     * @param idempotent whether the request can be repeated if it is not
+     * known to have reached the server
+     * @param request builds the request, called again on each retry
+     * @return completed with the response, which may be a failure if retries
+     * ran out, or with a {@link ProcessingException} if the request failed
+     * without a response
+     */
+    CompletableFuture<Response> submit(String name, boolean idempotent,
+            Supplier<Invocation> request) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        submit(name, idempotent, request, 0, result);
+        return result;
+    }
+
+    private void submit(String name, boolean idempotent,
+            Supplier<Invocation> request, int attempt,
+            CompletableFuture<Response> result) {
+        limit.acquireAsync().thenAccept(start -> {
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            try {
+                request.get().submit(new InvocationCallback<Response>() {
+
+                    @Override
+                    public void completed(Response r) {
+                        response.complete(r);
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        response.completeExceptionally(t);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                response.completeExceptionally(ex);
+            }
+
+            response.whenComplete((r, t) -> {
+                long delay;
+                try {
+                    delay = retryDelay(name, idempotent, attempt, start, r,
+                            t == null ? null : processingException(t));
+                } catch (RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                if (delay < 0) {
+                    result.complete(r);
+                    return;
+                }
+                try {
+                    timer.schedule(() -> submit(name, idempotent, request,
+                            attempt + 1, result), delay,
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    result.completeExceptionally(new ProcessingException(
+                            "Closed before retrying " + name, ex));
+                }
+            });
+        }).exceptionally(t -> {
+            result.completeExceptionally(processingException(t));
+            return null;
+        });
+    }
+
+    /**
+     * Record the outcome of an attempt and decide whether to retry.
+     *
+     * @param attempt number of retries made so far
+     * @param start start time of the attempt
+     * @param response response, null if there is none
+     * @param failure why there is no response
+     * @return milliseconds to wait before retrying, negative to return the
+     * response
+     * @throws ProcessingException if there is no response and retries ran
+     * out or the request is not safe to repeat
+     */
+    private long retryDelay(String name, boolean idempotent, int attempt,
+            long start, Response response, ProcessingException failure) {
+        if (failure != null) {
+            limit.release(name, start, true);
+            metrics.recordRequest(name, start,
+                    failure.getClass().getSimpleName());
+            if (!idempotent || attempt >= retries) {
+                metrics.recordFailure(name);
+                throw failure;
+            }
+            metrics.recordRetry(name);
+            long delay = backoff(attempt);
+            log.warn("Retrying {} in {} ms: {}", name, delay,
+                    failure.getMessage());
+            return delay;
+        }
+
+        int status = response.getStatus();
+        limit.release(name, start, isOverloaded(status));
+        metrics.recordRequest(name, start, status);
+        if (!isRetryable(status, idempotent) || attempt >= retries) {
+            if (response.getStatusInfo().getFamily()
+                    != Response.Status.Family.SUCCESSFUL) {
+                metrics.recordFailure(name);
+            }
+            return -1;
+        }
+
+        Long retryAfter = retryAfter(
+                response.getHeaderString(HttpHeaders.RETRY_AFTER),
+                Clock.systemUTC());
+        if (retryAfter != null && retryAfter > MAX_RETRY_AFTER) {
+            log.warn("Not retrying {} after {}: server asked to wait {} ms",
+                    name, status, retryAfter);
+            metrics.recordFailure(name);
+            return -1;
+        }
+        metrics.recordRetry(name);
+        response.close();
+        long delay;
+        if (retryAfter != null) {
+            delay = retryAfter;
+            limit.pause(delay);
+        } else {
+            delay = backoff(attempt);
+        }
+        log.warn("Retrying {} in {} ms after {}", name, delay, status);
+        return delay;
+    }
+
+    private static ProcessingException processingException(Throwable t) {
+        Throwable cause = t instanceof CompletionException
+                && t.getCause() != null ? t.getCause() : t;
+        return cause instanceof ProcessingException
+                ? (ProcessingException) cause
+                : new ProcessingException(cause);
+    }
+
+    private long acquire(String name) {
+        try {
+            return limit.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted before " + name, ex);
+        }
+    }
+
+    private static void sleep(String name, long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted retrying " + name, ex);
+        }
+    }
+
+    /**
+     * @return whether the status means the server or a proxy is overloaded
+     */
+    private static boolean isOverloaded(int status) {
+        return status == TOO_MANY_REQUESTS
+                || status == Response.Status.BAD_GATEWAY.getStatusCode()
+                || status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()
+                || status == Response.Status.GATEWAY_TIMEOUT.getStatusCode();
+    }
+
+    /**
+     * @param status response status
+     * @param idempotent whether the request can be repeated even if the
+     * server acted on it
+     * @return whether the request should be retried
+     */
+    static boolean isRetryable(int status, boolean idempotent) {
+        if (idempotent) {
+            return isOverloaded(status);
+        }
+        return status == TOO_MANY_REQUESTS || status
+                == Response.Status.SERVICE_UNAVAILABLE.getStatusCode();
+    }
+
+    /**
+     * Pick a random delay of up to an exponentially growing maximum, so
+     * requests throttled together are not retried together.
+     *
+     * @param attempt number of retries made so far
+     * @return delay in milliseconds
+     */
+    private static long backoff(int attempt) {
+        long max = BASE_DELAY << Math.min(attempt, 16);
+        return ThreadLocalRandom.current().nextLong(Math.min(max, MAX_DELAY)
+                + 1);
+    }
+
+    /**
+     * Parse a Retry-After header, given either in seconds or as a date.
+     *
+     * @param value header value, null if there is none
+     * @param clock current time, for a date
+     * @return delay in milliseconds, capped at {@link Long#MAX_VALUE}, null
+     * if there is none
+     */
+    static Long retryAfter(String value, Clock clock) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(value.trim())));
+        } catch (NumberFormatException notSeconds) {
+            try {
+                return Math.max(0, Duration.between(ZonedDateTime.now(clock),
+                        ZonedDateTime.parse(value.trim(),
+                                DateTimeFormatter.RFC_1123_DATE_TIME))
+                        .toMillis());
+            } catch (DateTimeParseException ex) {
+                log.debug("Ignoring Retry-After: {}", value);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stop scheduling retries, and fail asynchronous requests still waiting
+     * for a turn.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        limit.close();
+    }
+}
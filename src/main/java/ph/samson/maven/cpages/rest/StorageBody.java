@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import com.google.common.hash.Hasher;
+import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import static com.google.common.hash.Hashing.sha1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Page body in storage format, with its content hash.
+ *
+ * Large bodies can be kept in a file and are then streamed to Confluence
+ * without being held in memory. The hash is the SHA-1 of the body's UTF-16
+ * characters, the same as {@code sha1().hashUnencodedChars(body)}.
+ */
+public class StorageBody {
+
+    private final String value;
+    private final File file;
+    private final String hash;
+
+    /**
+     * @param value body held in memory
+     */
+    public StorageBody(String value) {
+        this.value = value;
+        this.file = null;
+        this.hash = sha1().hashUnencodedChars(value).toString();
+    }
+
+    /**
+     * @param file file holding the body
+     * @param hash content hash of the body, as computed by {@link Output}
+     */
+    public StorageBody(File file, String hash) {
+        this.value = null;
+        this.file = file;
+        this.hash = hash;
+    }
+
+    /**
+     * @return file holding the body, null if held in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return hex encoded content hash
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return reader of the body
+     * @throws IOException if the body file cannot be read
+     */
+    Reader open() throws IOException {
+        return file == null
+                ? new StringReader(value)
+                : Files.newBufferedReader(file.toPath(), UTF_8);
+    }
+
+    /**
+     * Writes a body to a file, hashing it along the way.
+     */
+    public static class Output extends FilterWriter {
+
+        private final File file;
+        private final Hasher hasher = sha1().newHasher();
+
+        /**
+         * @param file file to write the body to, replaced if it exists
+         * @throws IOException if the file cannot be created
+         */
+        public Output(File file) throws IOException {
+            super(Files.newBufferedWriter(file.toPath(), UTF_8));
+            this.file = file;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            hasher.putChar((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            for (int i = off; i < off + len; i++) {
+                hasher.putChar(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            hasher.putUnencodedChars(str.subSequence(off, off + len));
+        }
+
+        /**
+         * Finish writing.
+         *
+         * @return the written body
+         * @throws IOException if the body cannot be written
+         */
+        public StorageBody toBody() throws IOException {
+            flush();
+            return new StorageBody(file, hasher.hash().toString());
+        }
+    }
+}
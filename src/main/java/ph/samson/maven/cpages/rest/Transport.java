@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.util.Locale;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+
+/**
+ * HTTP connector used by {@link Confluence}.
+ */
+public enum Transport {
+
+    /**
+     * A pool of keep-alive connections from Apache HttpClient, shared by all
+     * requests.
+     */
+    POOLED {
+        @Override
+        void configure(ClientConfig config, int maxConnections) {
+            PoolingHttpClientConnectionManager pool
+                    = new PoolingHttpClientConnectionManager();
+            // every request goes to the same host
+            pool.setMaxTotal(maxConnections);
+            pool.setDefaultMaxPerRoute(maxConnections);
+            // the server may have closed connections idle for long
+            pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+            config.property(ApacheClientProperties.CONNECTION_MANAGER, pool);
+            config.connectorProvider(new ApacheConnectorProvider());
+        }
+    },
+    /**
+     * The JDK's {@link java.net.HttpURLConnection}, which keeps a few idle
+     * connections alive per host.
+     */
+    URLCONNECTION {
+        @Override
+        void configure(ClientConfig config, int maxConnections) {
+            // Jersey's default connector
+        }
+    };
+
+    /**
+     * Milliseconds a pooled connection may be idle before it is checked
+     * before reuse.
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /**
+     * Set up a client to use this transport.
+     *
+     * @param config client configuration
+     * @param maxConnections maximum number of connections to the server
+     */
+    abstract void configure(ClientConfig config, int maxConnections);
+
+    /**
+     * Parse a transport name.
+     *
+     * @param name {@code pooled} or {@code urlconnection}, in any case
+     * @return the transport
+     * @throws IllegalArgumentException if the transport is not supported
+     */
+    public static Transport named(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(
+                    "Unsupported transport: " + name, ex);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest.model;
+
+/**
+ * Content properties used by this plugin, keyed by their field names.
+ */
+public class ContentProperties {
+
+    private ContentProperty cpages;
+
+    public ContentProperty getCpages() {
+        return cpages;
+    }
+
+    public void setCpages(ContentProperty cpages) {
+        this.cpages = cpages;
+    }
+}
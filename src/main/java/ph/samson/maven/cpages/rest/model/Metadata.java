@@ -20,6 +20,7 @@ public class Metadata {
 
     private String mediaType;
     private String comment;
+    private ContentProperties properties;
 
     public String getMediaType() {
         return mediaType;
@@ -36,4 +37,12 @@ public class Metadata {
     public void setComment(String comment) {
         this.comment = comment;
     }
+
+    public ContentProperties getProperties() {
+        return properties;
+    }
+
+    public void setProperties(ContentProperties properties) {
+        this.properties = properties;
+    }
 }
@@ -29,6 +29,7 @@ public class Page {
     private Body body;
     private Version version;
     private List<Page> ancestors;
+    private Metadata metadata;
     private Links _links;
 
     public Page() {
@@ -119,6 +120,14 @@ public class Page {
         this.version = version;
     }
 
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(Metadata metadata) {
+        this.metadata = metadata;
+    }
+
     public Links get_links() {
         return _links;
     }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest.model;
+
+/**
+ * Id, version and links of a page, without its content.
+ */
+public class PageHandle {
+
+    private String id;
+    private Version version;
+    private Links _links;
+
+    public PageHandle() {
+    }
+
+    public PageHandle(String id) {
+        this.id = id;
+    }
+
+    public PageHandle(Page page) {
+        this.id = page.getId();
+        this.version = page.getVersion();
+        this._links = page.get_links();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Version getVersion() {
+        if (version == null) {
+            version = new Version();
+        }
+        return version;
+    }
+
+    public void setVersion(Version version) {
+        this.version = version;
+    }
+
+    public Links get_links() {
+        return _links;
+    }
+
+    public void set_links(Links _links) {
+        this._links = _links;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class CoalescerTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final List<Set<String>> batches = new ArrayList<>();
+
+    @After
+    public void shutdown() {
+        callers.shutdownNow();
+    }
+
+    private synchronized Map<String, Integer> lengths(Set<String> keys) {
+        batches.add(new HashSet<>(keys));
+        Map<String, Integer> found = new HashMap<>();
+        for (String key : keys) {
+            if (!key.startsWith("missing")) {
+                found.put(key, key.length());
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void fullBatchIsLookedUpWithoutWaitingForWindow()
+            throws Exception {
+        Coalescer<String, Integer> coalescer
+                = new Coalescer<>(3, 60_000, this::lengths);
+
+        long start = System.nanoTime();
+        Future<Integer> a = callers.submit(() -> coalescer.get("a"));
+        Future<Integer> bb = callers.submit(() -> coalescer.get("bb"));
+        Future<Integer> missing = callers.submit(
+                () -> coalescer.get("missing"));
+
+        assertThat(a.get(10, TimeUnit.SECONDS), is(1));
+        assertThat(bb.get(10, TimeUnit.SECONDS), is(2));
+        assertThat(missing.get(10, TimeUnit.SECONDS), is(nullValue()));
+        assertThat(System.nanoTime() - start,
+                lessThan(TimeUnit.SECONDS.toNanos(10)));
+        assertThat(batches, hasSize(1));
+        assertThat(batches.get(0), containsInAnyOrder("a", "bb", "missing"));
+    }
+
+    @Test
+    public void partialBatchIsLookedUpWhenWindowEnds() throws Exception {
+        Coalescer<String, Integer> coalescer
+                = new Coalescer<>(10, 100, this::lengths);
+
+        long start = System.nanoTime();
+        assertThat(coalescer.get("abc"), is(3));
+        assertThat(System.nanoTime() - start,
+                greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100)));
+
+        // the next caller starts a new batch
+        assertThat(coalescer.get("abcd"), is(4));
+        assertThat(batches, hasSize(2));
+        assertThat(batches.get(0), contains("abc"));
+        assertThat(batches.get(1), contains("abcd"));
+    }
+
+    @Test
+    public void callersOfSameKeyShareOneLookup() throws Exception {
+        Coalescer<String, Integer> coalescer
+                = new Coalescer<>(2, 60_000, this::lengths);
+
+        Future<Integer> first = callers.submit(() -> coalescer.get("ab"));
+        Future<Integer> second = callers.submit(() -> coalescer.get("ab"));
+        Future<Integer> third = callers.submit(() -> coalescer.get("abc"));
+
+        assertThat(first.get(10, TimeUnit.SECONDS), is(2));
+        assertThat(second.get(10, TimeUnit.SECONDS), is(2));
+        assertThat(third.get(10, TimeUnit.SECONDS), is(3));
+        assertThat(batches, hasSize(1));
+    }
+
+    @Test
+    public void failedLookupFailsEveryCallerOfBatch() throws Exception {
+        IllegalStateException failure = new IllegalStateException("down");
+        Coalescer<String, Integer> coalescer = new Coalescer<>(2, 60_000,
+                keys -> {
+                    throw failure;
+                });
+
+        Future<Integer> a = callers.submit(() -> coalescer.get("a"));
+        Future<Integer> b = callers.submit(() -> coalescer.get("b"));
+
+        for (Future<Integer> result : Arrays.asList(a, b)) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("lookup failure not passed on");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause(), is(sameInstance(failure)));
+            }
+        }
+    }
+
+    @Test
+    public void failedBatchDoesNotAffectNextBatch() {
+        Coalescer<String, Integer> coalescer = new Coalescer<>(1, 0,
+                keys -> {
+                    if (keys.contains("bad")) {
+                        throw new IllegalArgumentException("bad");
+                    }
+                    return lengths(keys);
+                });
+
+        try {
+            coalescer.get("bad");
+            fail("lookup failure not passed on");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertThat(coalescer.get("good"), is(4));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DeployManifestTest {
+
+    private static final String TARGET = "https://wiki/rest/api/#SPACE/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DeployManifest.Entry entry(String id) {
+        return new DeployManifest.Entry(id, 3, "parent", "Title " + id,
+                "hash" + id, ImmutableMap.of("a.png", "ha", "b.png", "hb"));
+    }
+
+    @Test
+    public void savedManifestLoadsTheSame() throws Exception {
+        File file = new File(folder.getRoot(), "target/manifest.json");
+        DeployManifest manifest = DeployManifest.load(file, TARGET);
+        manifest.put("Top", entry("1"));
+        manifest.put("Top/Child", entry("2"));
+        manifest.setCommit("abc123");
+        manifest.setConfiguration("config");
+        manifest.setInputs("Top", ImmutableSet.of("../shared/logo.png",
+                "shared/common.iuml"));
+        manifest.save();
+
+        DeployManifest loaded = DeployManifest.load(file, TARGET);
+        assertThat(loaded.getCommit(), is("abc123"));
+        assertThat(loaded.getConfiguration(), is("config"));
+        DeployManifest.Entry child = loaded.get("Top/Child");
+        assertThat(child.getPageId(), is("2"));
+        assertThat(child.getVersion(), is(3));
+        assertThat(child.getParentId(), is("parent"));
+        assertThat(child.getTitle(), is("Title 2"));
+        assertThat(child.getBodyHash(), is("hash2"));
+        assertThat(child.getAttachments(),
+                is(ImmutableMap.of("a.png", "ha", "b.png", "hb")));
+        assertThat(loaded.get("Top").getPageId(), is("1"));
+        assertThat(loaded.getInputs().keySet(), contains("Top"));
+        assertThat(loaded.getInputs().get("Top"),
+                contains("../shared/logo.png", "shared/common.iuml"));
+    }
+
+    @Test
+    public void missingManifestIsEmpty() {
+        DeployManifest manifest = DeployManifest.load(
+                new File(folder.getRoot(), "none.json"), TARGET);
+
+        assertThat(manifest.get("Top"), is(nullValue()));
+        assertThat(manifest.getCommit(), is(nullValue()));
+        assertThat(manifest.getConfiguration(), is(nullValue()));
+        assertThat(manifest.getInputs().isEmpty(), is(true));
+    }
+
+    @Test
+    public void manifestForOtherTargetIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "manifest.json");
+        DeployManifest manifest = DeployManifest.load(file, TARGET);
+        manifest.put("Top", entry("1"));
+        manifest.setCommit("abc123");
+        manifest.save();
+
+        DeployManifest other = DeployManifest.load(file,
+                "https://wiki/rest/api/#OTHER/");
+        assertThat(other.get("Top"), is(nullValue()));
+        assertThat(other.getCommit(), is(nullValue()));
+    }
+
+    @Test
+    public void unreadableManifestIsIgnored() throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), ("{\"target\":\"" + TARGET
+                + "\",\"commit\":\"abc123\",\"pages\":{\"Top\":[]}}")
+                .getBytes(UTF_8));
+
+        DeployManifest manifest = DeployManifest.load(file, TARGET);
+        assertThat(manifest.get("Top"), is(nullValue()));
+        assertThat(manifest.getCommit(), is(nullValue()));
+
+        Files.write(file.toPath(), "{not json".getBytes(UTF_8));
+        assertThat(DeployManifest.load(file, TARGET).get("Top"),
+                is(nullValue()));
+    }
+
+    @Test
+    public void retainForgetsRemovedWikiDirs() throws Exception {
+        File file = new File(folder.getRoot(), "manifest.json");
+        DeployManifest manifest = DeployManifest.load(file, TARGET);
+        manifest.put("Top", entry("1"));
+        manifest.put("Gone", entry("2"));
+        manifest.setInputs("Top", Collections.singleton("shared/a.png"));
+        manifest.setInputs("Gone", Collections.singleton("shared/b.png"));
+
+        manifest.retain(Arrays.asList("Top", "New"));
+        assertThat(manifest.get("Top"), is(notNullValue()));
+        assertThat(manifest.get("Gone"), is(nullValue()));
+        assertThat(manifest.getInputs().keySet(), contains("Top"));
+
+        manifest.save();
+        DeployManifest loaded = DeployManifest.load(file, TARGET);
+        assertThat(loaded.get("Gone"), is(nullValue()));
+        assertThat(loaded.getInputs().keySet(), contains("Top"));
+    }
+
+    @Test
+    public void wikiDirWithoutOutsideInputsIsNotRecorded() {
+        DeployManifest manifest = DeployManifest.load(
+                new File(folder.getRoot(), "none.json"), TARGET);
+        manifest.setInputs("Top", Collections.singleton("shared/a.png"));
+
+        manifest.setInputs("Top", Collections.emptySet());
+        assertThat(manifest.getInputs().isEmpty(), is(true));
+    }
+}
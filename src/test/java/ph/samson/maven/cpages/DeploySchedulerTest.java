@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DeploySchedulerTest {
+
+    private static final Path TOP = Paths.get("/wiki");
+    private static final PageHandle TOP_PARENT = new PageHandle("top");
+
+    private static final Path A = TOP.resolve("A");
+    private static final Path A_B = A.resolve("B");
+    private static final Path A_B_C = A_B.resolve("C");
+    private static final Path D = TOP.resolve("D");
+    private static final Path D_E = D.resolve("E");
+
+    @Test
+    public void childPagesAreDeployedUnderTheirParent() throws Exception {
+        StubDeployer deployer = new StubDeployer();
+
+        new DeployScheduler(4, 4, 8, false).deploy(TOP,
+                Arrays.asList(A, D, A_B, D_E, A_B_C), TOP_PARENT, deployer);
+
+        assertThat(deployer.parents.get(A), is("top"));
+        assertThat(deployer.parents.get(D), is("top"));
+        assertThat(deployer.parents.get(A_B), is(A.toString()));
+        assertThat(deployer.parents.get(A_B_C), is(A_B.toString()));
+        assertThat(deployer.parents.get(D_E), is(D.toString()));
+        for (Path dir : Arrays.asList(A_B, A_B_C, D_E)) {
+            assertThat(dir.toString(), deployer.order.indexOf(dir),
+                    greaterThan(deployer.order.indexOf(dir.getParent())));
+        }
+        assertThat(deployer.attached.keySet(),
+                containsInAnyOrder(A, D, A_B, D_E, A_B_C));
+        assertThat(deployer.attached.get(A_B_C), is(A_B_C.toString()));
+    }
+
+    @Test
+    public void parentMustBeListedFirst() throws Exception {
+        try {
+            new DeployScheduler(1, 1, 1, false).deploy(TOP,
+                    Arrays.asList(A_B, A), TOP_PARENT, new StubDeployer());
+            fail("deployed a child before its parent");
+        } catch (IllegalArgumentException expected) {
+            assertThat(expected.getMessage(), containsString(A_B.toString()));
+        }
+    }
+
+    @Test
+    public void depthBoundsWikiDirsInPipeline() throws Exception {
+        List<Path> dirs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            dirs.add(TOP.resolve("page" + i));
+        }
+        StubDeployer deployer = new StubDeployer();
+
+        new DeployScheduler(8, 8, 3, false).deploy(TOP, dirs, TOP_PARENT,
+                deployer);
+
+        assertThat(deployer.attached.size(), is(50));
+        assertThat(deployer.maxInPipeline.get(), lessThanOrEqualTo(3));
+    }
+
+    @Test
+    public void failureSkipsOnlyItsSubtree() throws Exception {
+        StubDeployer deployer = new StubDeployer();
+        IOException failure = new IOException("cannot render A");
+        deployer.renderFailures.put(A, failure);
+
+        try {
+            new DeployScheduler(4, 4, 8, false).deploy(TOP,
+                    Arrays.asList(A, D, A_B, D_E, A_B_C), TOP_PARENT,
+                    deployer);
+            fail("failure not reported");
+        } catch (IOException ex) {
+            assertThat(ex, is(sameInstance(failure)));
+        }
+
+        assertThat(deployer.parents.keySet(),
+                containsInAnyOrder(D, D_E));
+        assertThat(deployer.attached.keySet(),
+                containsInAnyOrder(D, D_E));
+        // the subtree is still rendered, only not deployed
+        assertThat(deployer.rendered, hasItems(A_B, A_B_C));
+    }
+
+    @Test
+    public void attachmentFailureIsThrownUnwrapped() throws Exception {
+        StubDeployer deployer = new StubDeployer();
+        IOException failure = new IOException("cannot attach to D");
+        deployer.attachmentFailures.put(D, failure);
+
+        try {
+            new DeployScheduler(2, 2, 2, false).deploy(TOP,
+                    Arrays.asList(A, D), TOP_PARENT, deployer);
+            fail("failure not reported");
+        } catch (IOException ex) {
+            assertThat(ex, is(sameInstance(failure)));
+        }
+        assertThat(deployer.attached.keySet(), contains(A));
+    }
+
+    @Test
+    public void runtimeExceptionIsThrownAsIs() throws Exception {
+        StubDeployer deployer = new StubDeployer();
+        IllegalStateException failure = new IllegalStateException("boom");
+        deployer.pageFailures.put(A, failure);
+
+        try {
+            new DeployScheduler(2, 2, 2, false).deploy(TOP,
+                    Collections.singletonList(A), TOP_PARENT, deployer);
+            fail("failure not reported");
+        } catch (IllegalStateException ex) {
+            assertThat(ex, is(sameInstance(failure)));
+        }
+    }
+
+    /**
+     * Records what was deployed under which parent, failing as told.
+     */
+    private static class StubDeployer
+            implements DeployScheduler.PageDeployer {
+
+        private final Map<Path, IOException> renderFailures = new HashMap<>();
+        private final Map<Path, RuntimeException> pageFailures
+                = new HashMap<>();
+        private final Map<Path, IOException> attachmentFailures
+                = new HashMap<>();
+
+        private final Set<Path> rendered
+                = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final Map<Path, String> parents = new ConcurrentHashMap<>();
+        private final List<Path> order
+                = Collections.synchronizedList(new ArrayList<>());
+        private final Map<Path, String> attached = new ConcurrentHashMap<>();
+        private final AtomicInteger inPipeline = new AtomicInteger();
+        private final AtomicInteger maxInPipeline = new AtomicInteger();
+
+        @Override
+        public void render(Path dir) throws IOException {
+            maxInPipeline.accumulateAndGet(inPipeline.incrementAndGet(),
+                    Math::max);
+            pause();
+            rendered.add(dir);
+            if (renderFailures.containsKey(dir)) {
+                inPipeline.decrementAndGet();
+                throw renderFailures.get(dir);
+            }
+        }
+
+        @Override
+        public PageHandle deployPage(Path dir, PageHandle parent) {
+            pause();
+            parents.put(dir, parent.getId());
+            if (pageFailures.containsKey(dir)) {
+                inPipeline.decrementAndGet();
+                throw pageFailures.get(dir);
+            }
+            order.add(dir);
+            return new PageHandle(dir.toString());
+        }
+
+        @Override
+        public void deployAttachments(Path dir, PageHandle page)
+                throws IOException {
+            pause();
+            inPipeline.decrementAndGet();
+            if (attachmentFailures.containsKey(dir)) {
+                throw attachmentFailures.get(dir);
+            }
+            attached.put(dir, page.getId());
+        }
+
+        private static void pause() {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
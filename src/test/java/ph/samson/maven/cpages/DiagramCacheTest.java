@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.plantuml.FileFormat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static ph.samson.maven.cpages.TestFiles.write;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DiagramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiagramCache cache(long maxSize) throws IOException {
+        return new DiagramCache(folder.newFolder(), maxSize);
+    }
+
+    @Test
+    public void keyCoversIncludedFiles() throws Exception {
+        DiagramCache cache = cache(1024);
+        File dir = folder.newFolder("diagrams");
+        File common = write(new File(dir, "common.iuml"), "A -> B\n");
+        File source = write(new File(dir, "flow.puml"),
+                "@startuml\n!include common.iuml\n@enduml\n");
+        String key = cache.key(source, FileFormat.PNG);
+
+        assertThat(cache.key(source, FileFormat.PNG), is(key));
+        assertThat(cache.key(source, FileFormat.SVG), is(not(key)));
+
+        write(common, "A -> C\n");
+        assertThat(cache.key(source, FileFormat.PNG), is(not(key)));
+    }
+
+    @Test
+    public void keyCoversNestedIncludes() throws Exception {
+        DiagramCache cache = cache(1024);
+        File dir = folder.newFolder("diagrams");
+        File shared = write(new File(folder.getRoot(), "shared/style.iuml"),
+                "skinparam monochrome true\n");
+        write(new File(dir, "common.iuml"),
+                "!include ../shared/style.iuml\nA -> B\n");
+        File source = write(new File(dir, "flow.puml"),
+                "@startuml\n!include common.iuml!1\n@enduml\n");
+        String key = cache.key(source, FileFormat.PNG);
+
+        write(shared, "skinparam monochrome false\n");
+        assertThat(cache.key(source, FileFormat.PNG), is(not(key)));
+    }
+
+    @Test
+    public void includeCyclesEnd() throws Exception {
+        DiagramCache cache = cache(1024);
+        File dir = folder.newFolder("diagrams");
+        File a = write(new File(dir, "a.iuml"), "!include b.iuml\n");
+        File b = write(new File(dir, "b.iuml"), "!include a.iuml\n");
+        File source = write(new File(dir, "flow.puml"),
+                "@startuml\n!include a.iuml\n@enduml\n");
+
+        assertThat(cache.key(source, FileFormat.PNG), is(notNullValue()));
+        assertThat(DiagramCache.includes(source), contains(a, b));
+    }
+
+    @Test
+    public void missingIncludeIsPartOfKey() throws Exception {
+        DiagramCache cache = cache(1024);
+        File dir = folder.newFolder("diagrams");
+        File source = write(new File(dir, "flow.puml"),
+                "@startuml\n!include missing.iuml\n@enduml\n");
+        String key = cache.key(source, FileFormat.PNG);
+
+        assertThat(DiagramCache.includes(source), is(empty()));
+        write(new File(dir, "missing.iuml"), "A -> B\n");
+        assertThat(cache.key(source, FileFormat.PNG), is(not(key)));
+    }
+
+    @Test
+    public void remoteIncludeIsNotCached() throws Exception {
+        DiagramCache cache = cache(1024);
+        File dir = folder.newFolder("diagrams");
+        write(new File(dir, "common.iuml"),
+                "!includeurl http://example.com/style.iuml\n");
+        File direct = write(new File(dir, "direct.puml"),
+                "@startuml\n!includeurl http://example.com/a.iuml\n"
+                + "@enduml\n");
+        File indirect = write(new File(dir, "indirect.puml"),
+                "@startuml\n!include common.iuml\n@enduml\n");
+
+        assertThat(cache.key(direct, FileFormat.PNG), is(nullValue()));
+        assertThat(cache.key(indirect, FileFormat.PNG), is(nullValue()));
+    }
+
+    @Test
+    public void storedImagesAreCopiedBack() throws Exception {
+        DiagramCache cache = cache(1024);
+        File image = write(folder.newFile("flow.png"), "png");
+        cache.put("key1", Collections.singletonList(image));
+
+        File outputDir = new File(folder.getRoot(), "out");
+        List<File> images = cache.get("key1", outputDir);
+        assertThat(images, contains(new File(outputDir, "flow.png")));
+        assertThat(new String(Files.readAllBytes(images.get(0).toPath()),
+                UTF_8), is("png"));
+        assertThat(cache.get("key2", outputDir), is(nullValue()));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        File root = folder.newFolder();
+        DiagramCache cache = new DiagramCache(root, 250);
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 3; i++) {
+            File image = write(folder.newFile("image" + i + ".png"),
+                    new String(new char[100]));
+            cache.put("key" + i, Collections.singletonList(image));
+            assertThat(new File(root, "key" + i).setLastModified(
+                    now - TimeUnit.MINUTES.toMillis(10 - i)), is(true));
+        }
+        // used now, so no longer the oldest
+        assertThat(cache.get("key1", folder.newFolder()), is(notNullValue()));
+
+        cache.evict();
+        assertThat(new File(root, "key1").isDirectory(), is(true));
+        assertThat(new File(root, "key2").exists(), is(false));
+        assertThat(new File(root, "key3").isDirectory(), is(true));
+    }
+
+    @Test
+    public void entriesBeingStoredAreNotEvicted() throws Exception {
+        File root = folder.newFolder();
+        DiagramCache cache = new DiagramCache(root, 50);
+        File storing = write(new File(root, "key1.12345/flow.png"),
+                new String(new char[100]));
+        File abandoned = write(new File(root, "key2.12345/flow.png"),
+                new String(new char[100]));
+        assertThat(abandoned.getParentFile().setLastModified(
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)),
+                is(true));
+
+        cache.evict();
+        assertThat(storing.isFile(), is(true));
+        assertThat(abandoned.getParentFile().exists(), is(false));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ImageOptimizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File optimize(File image, int maxDimension) throws IOException {
+        ImageOptimizer optimizer = new ImageOptimizer(folder.newFolder(),
+                maxDimension, Fingerprints.load(
+                        new File(folder.getRoot(), "fingerprints.json")));
+        return optimizer.optimize(image);
+    }
+
+    @Test
+    public void largePngIsScaledKeepingItsPalette() throws Exception {
+        // black and white noise takes a bit per pixel, and would take many
+        // more if scaled to RGB
+        BufferedImage image = new BufferedImage(500, 250,
+                BufferedImage.TYPE_BYTE_BINARY);
+        Random random = new Random(1);
+        for (int x = 0; x < 500; x++) {
+            for (int y = 0; y < 250; y++) {
+                image.setRGB(x, y, random.nextBoolean() ? 0xffffff : 0);
+            }
+        }
+        File png = folder.newFile("noise.png");
+        ImageIO.write(image, "png", png);
+
+        File optimized = optimize(png, 400);
+        BufferedImage scaled = ImageIO.read(optimized);
+
+        assertThat(scaled.getWidth(), is(400));
+        assertThat(scaled.getHeight(), is(200));
+        assertThat(scaled.getColorModel(),
+                is(instanceOf(IndexColorModel.class)));
+        assertThat(scaled.getColorModel().getPixelSize(), is(1));
+        assertThat(optimized.length(), lessThan(png.length()));
+    }
+
+    @Test
+    public void scaledJpegKeepsIccProfile() throws Exception {
+        File jpeg = jpeg("wide.jpg", 1, ByteOrder.BIG_ENDIAN);
+        byte[] profile = ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB)
+                .getData();
+        byte[] plain = Files.readAllBytes(jpeg.toPath());
+        ByteArrayOutputStream withProfile = new ByteArrayOutputStream();
+        withProfile.write(plain, 0, 2);
+        int length = 2 + 12 + 2 + profile.length;
+        withProfile.write(new byte[]{(byte) 0xff, (byte) 0xe2,
+            (byte) (length >> 8), (byte) length});
+        withProfile.write("ICC_PROFILE\0".getBytes(US_ASCII));
+        withProfile.write(new byte[]{1, 1});
+        withProfile.write(profile);
+        withProfile.write(plain, 2, plain.length - 2);
+        Files.write(jpeg.toPath(), withProfile.toByteArray());
+
+        File optimized = optimize(jpeg, 20);
+
+        byte[] result = Files.readAllBytes(optimized.toPath());
+        assertThat(ImageIO.read(optimized).getWidth(), is(20));
+        String data = new String(result, US_ASCII);
+        int icc = data.indexOf("ICC_PROFILE\0");
+        assertThat(icc, greaterThan(0));
+        assertThat(Arrays.copyOfRange(result, icc + 14,
+                icc + 14 + profile.length), is(profile));
+    }
+
+    @Test
+    public void strippedJpegKeepsOrientation() throws Exception {
+        File jpeg = jpeg("rotated.jpg", 6, ByteOrder.LITTLE_ENDIAN);
+
+        File optimized = optimize(jpeg, 0);
+
+        assertThat(orientation(Files.readAllBytes(optimized.toPath())),
+                is(6));
+        assertThat(optimized.length(), lessThan(jpeg.length()));
+    }
+
+    @Test
+    public void scaledJpegKeepsOrientation() throws Exception {
+        File jpeg = jpeg("rotated.jpg", 8, ByteOrder.BIG_ENDIAN);
+
+        File optimized = optimize(jpeg, 20);
+
+        assertThat(orientation(Files.readAllBytes(optimized.toPath())),
+                is(8));
+        assertThat(ImageIO.read(optimized).getWidth(), is(20));
+    }
+
+    @Test
+    public void uprightJpegHasNoExif() throws Exception {
+        File jpeg = jpeg("upright.jpg", 1, ByteOrder.BIG_ENDIAN);
+
+        File optimized = optimize(jpeg, 0);
+
+        assertThat(orientation(Files.readAllBytes(optimized.toPath())),
+                is(nullValue()));
+    }
+
+    /**
+     * Write a JPEG with an EXIF segment holding a camera make and the given
+     * orientation.
+     */
+    private File jpeg(String name, int orientation, ByteOrder order)
+            throws IOException {
+        BufferedImage image = new BufferedImage(40, 30,
+                BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", encoded);
+        byte[] plain = encoded.toByteArray();
+
+        ByteBuffer exif = ByteBuffer.allocate(2 + 2 + 6 + 8 + 2 + 24 + 4
+                + 8).order(order);
+        exif.order(ByteOrder.BIG_ENDIAN).putShort((short) 0xffe1)
+                .putShort((short) (exif.capacity() - 2));
+        exif.put("Exif".getBytes(US_ASCII)).putShort((short) 0);
+        exif.put((order == ByteOrder.LITTLE_ENDIAN ? "II" : "MM")
+                .getBytes(US_ASCII));
+        exif.order(order).putShort((short) 42).putInt(8);
+        exif.putShort((short) 2);
+        // make, an ASCII string of up to four bytes held in the entry
+        exif.putShort((short) 0x010f).putShort((short) 2).putInt(4)
+                .put("Cam".getBytes(US_ASCII)).put((byte) 0);
+        exif.putShort((short) 0x0112).putShort((short) 3).putInt(1)
+                .putShort((short) orientation).putShort((short) 0);
+        exif.putInt(0);
+        exif.put("padding!".getBytes(US_ASCII));
+
+        // the EXIF segment goes right after the start of image marker
+        File file = folder.newFile(name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(plain, 0, 2);
+        out.write(exif.array());
+        out.write(plain, 2, plain.length - 2);
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+
+    /**
+     * Find the EXIF orientation of a JPEG.
+     *
+     * @return the orientation, null if there is no EXIF segment
+     */
+    private static Integer orientation(byte[] jpeg) {
+        String data = new String(jpeg, US_ASCII);
+        int exif = data.indexOf("Exif\0\0");
+        if (exif < 0) {
+            return null;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(jpeg, exif + 6,
+                jpeg.length - exif - 6).slice();
+        tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+        int ifd = tiff.getInt(4);
+        for (int i = 0; i < tiff.getShort(ifd); i++) {
+            int entry = ifd + 2 + 12 * i;
+            if (tiff.getShort(entry) == 0x0112) {
+                return (int) tiff.getShort(entry + 8);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class JsonFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeReplacesFileWithoutLeavingTemporaryFiles()
+            throws Exception {
+        File file = new File(folder.getRoot(), "state/manifest.json");
+
+        JsonFiles.write(file, Collections.singletonMap("run", 1L), true);
+        JsonFiles.write(file, Collections.singletonMap("run", 2L), false);
+
+        assertThat(JsonFiles.read(file).get("run"), is((Object) 2L));
+        assertThat(file.getParentFile().list(),
+                arrayContaining("manifest.json"));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ph.samson.maven.cpages.rest.StorageBody;
+
+import static ph.samson.maven.cpages.TestFiles.write;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class RenderCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Fingerprints fingerprints;
+    private RenderCache cache;
+    private File outputDir;
+    private File image;
+    private Map<String, File> diagrams;
+
+    @Before
+    public void setUp() throws IOException {
+        fingerprints = Fingerprints.load(
+                new File(folder.getRoot(), "fingerprints.json"));
+        cache = new RenderCache("1.0\npegdown\nfooter", fingerprints);
+        outputDir = folder.newFolder();
+        image = write(folder.newFile("image.png"), "image");
+        diagrams = Collections.singletonMap("flow.png",
+                new File(outputDir, "flow.png"));
+    }
+
+    private String put(String markdown) throws IOException {
+        File body = write(new File(outputDir, "body.xml"), "<p>body</p>");
+        String key = cache.key(markdown, diagrams);
+        cache.put(outputDir, key, new ConfluencePage("Title",
+                new StorageBody(body, "bodyhash"),
+                Collections.singletonList(image)));
+        return key;
+    }
+
+    @Test
+    public void unchangedPageIsReused() throws Exception {
+        String key = put("# Page");
+
+        ConfluencePage page = cache.get(outputDir,
+                cache.key("# Page", diagrams), "Title");
+        assertThat(page, is(notNullValue()));
+        assertThat(page.getTitle(), is("Title"));
+        assertThat(page.getBody().getHash(), is("bodyhash"));
+        assertThat(page.getBody().getFile(),
+                is(new File(outputDir, "body.xml").getAbsoluteFile()));
+        assertThat(page.getAttachments(),
+                contains(image.getAbsoluteFile()));
+        assertThat(cache.key("# Page", diagrams), is(key));
+    }
+
+    @Test
+    public void changedMarkdownChangesKey() throws Exception {
+        put("# Page");
+
+        assertThat(cache.get(outputDir, cache.key("# Changed", diagrams),
+                "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void changedDiagramsChangeKey() throws Exception {
+        put("# Page");
+
+        assertThat(cache.get(outputDir, cache.key("# Page",
+                Collections.singletonMap("flow.png",
+                        new File(outputDir, "flow.svg"))), "Title"),
+                is(nullValue()));
+        assertThat(cache.get(outputDir, cache.key("# Page",
+                Collections.emptyMap()), "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void changedConfigurationChangesKey() throws Exception {
+        put("# Page");
+
+        RenderCache other = new RenderCache("1.0\ncommonmark\nfooter",
+                fingerprints);
+        assertThat(other.get(outputDir, other.key("# Page", diagrams),
+                "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void changedAttachmentIsRenderedAgain() throws Exception {
+        String key = put("# Page");
+
+        write(image, "another image");
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void deletedAttachmentIsRenderedAgain() throws Exception {
+        String key = put("# Page");
+
+        assertThat(image.delete(), is(true));
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void deletedBodyIsRenderedAgain() throws Exception {
+        String key = put("# Page");
+
+        assertThat(new File(outputDir, "body.xml").delete(), is(true));
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void removedPageIsRenderedAgain() throws Exception {
+        String key = put("# Page");
+
+        cache.remove(outputDir);
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+    }
+
+    @Test
+    public void corruptRecordIsRenderedAgain() throws Exception {
+        String key = put("# Page");
+        File record = new File(outputDir, ".cpages-render.json");
+
+        write(record, "{\"key\":\"" + key + "\",\"body\":");
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+
+        write(record, "{\"key\":\"" + key + "\"}");
+        assertThat(cache.get(outputDir, key, "Title"), is(nullValue()));
+
+        // and is replaced when rendered again
+        put("# Page");
+        assertThat(cache.get(outputDir, key, "Title"), is(notNullValue()));
+    }
+}
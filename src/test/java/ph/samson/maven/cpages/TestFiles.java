@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * File fixtures shared by the cache tests.
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * Write {@code content} to {@code file}, creating missing parents.
+     */
+    static File write(File file, String content) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile()
+                .toPath());
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+        return file;
+    }
+}
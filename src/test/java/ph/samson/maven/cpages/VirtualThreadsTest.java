@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void featureVersion() {
+        assertThat(VirtualThreads.featureVersion("1.8"), is(8));
+        assertThat(VirtualThreads.featureVersion("19"), is(19));
+        assertThat(VirtualThreads.featureVersion("21"), is(21));
+        assertThat(VirtualThreads.featureVersion("21.0.1"), is(21));
+        assertThat(VirtualThreads.featureVersion("unknown"), is(0));
+        assertThat(VirtualThreads.featureVersion(null), is(0));
+    }
+
+    @Test
+    public void availableFromJdk21() {
+        assertThat(VirtualThreads.isAvailable(), is(VirtualThreads
+                .featureVersion(System.getProperty(
+                        "java.specification.version")) >= 21));
+    }
+}
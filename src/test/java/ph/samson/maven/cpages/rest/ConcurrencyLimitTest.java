@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimitTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final FakeTimer timer = new FakeTimer();
+
+    @After
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void startsAtHalfTheMaximum() {
+        assertThat(new ConcurrencyLimit(8, timer, ticker).getLimit(), is(4));
+        assertThat(new ConcurrencyLimit(1, timer, ticker).getLimit(), is(1));
+    }
+
+    @Test
+    public void healthyRequestsRaiseLimitUpToMaximum() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+
+        // about one more for every limit's worth of requests
+        request(limit, 10, false);
+        request(limit, 10, false);
+        request(limit, 10, false);
+        request(limit, 10, false);
+        assertThat(limit.getLimit(), is(4));
+        request(limit, 10, false);
+        assertThat(limit.getLimit(), is(5));
+
+        for (int i = 0; i < 100; i++) {
+            request(limit, 10, false);
+        }
+        assertThat(limit.getLimit(), is(8));
+    }
+
+    @Test
+    public void slowRequestsKeepLimit() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        request(limit, 10, false);
+
+        for (int i = 0; i < 100; i++) {
+            request(limit, 30, false);
+        }
+        assertThat(limit.getLimit(), is(4));
+    }
+
+    @Test
+    public void fastestTimeIsKeptPerKindOfRequest() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        request(limit, 10, false);
+
+        for (int i = 0; i < 100; i++) {
+            limit.release("upload", acquire(limit, 30), false);
+        }
+        assertThat(limit.getLimit(), is(8));
+    }
+
+    @Test
+    public void throttlingHalvesLimitOncePerWindow() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        ticker.advance(1);
+        long[] inFlight = new long[4];
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = limit.acquire();
+        }
+
+        ticker.advance(10);
+        for (long start : inFlight) {
+            limit.release("get", start, true);
+        }
+        assertThat(limit.getLimit(), is(2));
+
+        // sent after the decrease
+        ticker.advance(1);
+        request(limit, 10, true);
+        assertThat(limit.getLimit(), is(1));
+        ticker.advance(1);
+        request(limit, 10, true);
+        assertThat(limit.getLimit(), is(1));
+    }
+
+    @Test
+    public void asyncRequestsWaitForRoom() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, timer, ticker);
+        long start = limit.acquire();
+
+        CompletableFuture<Long> turn = limit.acquireAsync();
+        assertThat(turn.isDone(), is(false));
+
+        ticker.advance(10);
+        limit.release("get", start, false);
+        assertThat(turn.getNow(null), is(ticker.read()));
+    }
+
+    @Test
+    public void pauseHoldsAsyncRequestsUntilTimerFires() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        limit.pause(1000);
+
+        CompletableFuture<Long> turn = limit.acquireAsync();
+        CompletableFuture<Long> next = limit.acquireAsync();
+        assertThat(turn.isDone(), is(false));
+        assertThat(timer.delays, contains(TimeUnit.SECONDS.toNanos(1)));
+
+        ticker.advance(TimeUnit.SECONDS.toNanos(1));
+        timer.fire();
+        assertThat(turn.isDone(), is(true));
+        assertThat(next.isDone(), is(true));
+    }
+
+    @Test
+    public void shorterPauseDoesNotCutLongerOneShort() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        limit.pause(1000);
+        limit.pause(10);
+
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(10));
+        CompletableFuture<Long> turn = limit.acquireAsync();
+        assertThat(turn.isDone(), is(false));
+        assertThat(timer.delays,
+                contains(TimeUnit.MILLISECONDS.toNanos(990)));
+    }
+
+    @Test
+    public void closeFailsWaitingAsyncRequests() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        limit.pause(1000);
+        CompletableFuture<Long> turn = limit.acquireAsync();
+
+        limit.close();
+        assertFailed(turn);
+        assertFailed(limit.acquireAsync());
+    }
+
+    @Test
+    public void stoppedTimerFailsPausedAsyncRequests() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(8, timer, ticker);
+        timer.shutdownNow();
+        limit.pause(1000);
+
+        assertFailed(limit.acquireAsync());
+    }
+
+    private static void assertFailed(CompletableFuture<Long> turn)
+            throws InterruptedException {
+        try {
+            turn.get();
+            fail("got a turn");
+        } catch (ExecutionException expected) {
+            assertThat(expected.getCause(),
+                    is(instanceOf(IllegalStateException.class)));
+        }
+    }
+
+    /**
+     * Send a request that takes the given time.
+     */
+    private void request(ConcurrencyLimit limit, long nanos,
+            boolean throttled) throws InterruptedException {
+        limit.release("get", acquire(limit, nanos), throttled);
+    }
+
+    private long acquire(ConcurrencyLimit limit, long nanos)
+            throws InterruptedException {
+        long start = limit.acquire();
+        ticker.advance(nanos);
+        return start;
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long now = 1_000_000;
+
+        @Override
+        public long read() {
+            return now;
+        }
+
+        void advance(long nanos) {
+            now += nanos;
+        }
+    }
+
+    /**
+     * Holds on to scheduled tasks until told to run them, and rejects them
+     * once shut down.
+     */
+    private static class FakeTimer extends ScheduledThreadPoolExecutor {
+
+        private final List<Long> delays = new ArrayList<>();
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        FakeTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay,
+                TimeUnit unit) {
+            if (isShutdown()) {
+                throw new RejectedExecutionException("Shut down");
+            }
+            delays.add(unit.toNanos(delay));
+            tasks.add(command);
+            return null;
+        }
+
+        void fire() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : due) {
+                task.run();
+            }
+        }
+    }
+}
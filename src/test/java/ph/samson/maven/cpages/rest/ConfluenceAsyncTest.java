@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ServerErrorException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ph.samson.maven.cpages.metrics.Metrics;
+import ph.samson.maven.cpages.rest.model.Page;
+import ph.samson.maven.cpages.rest.model.PageHandle;
+import ph.samson.maven.cpages.rest.model.Version;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Asynchronous requests against {@link FakeConfluence}.
+ */
+public class ConfluenceAsyncTest {
+
+    private static final String SPACE = "TEST";
+
+    private FakeConfluence fake;
+    private Confluence confluence;
+
+    @Before
+    public void start() throws Exception {
+        fake = new FakeConfluence();
+        confluence = new Confluence(fake.getEndpoint(), "user", "secret",
+                Transport.POOLED, 4, 1, new Metrics());
+    }
+
+    @After
+    public void stop() {
+        confluence.close();
+        fake.close();
+    }
+
+    @Test
+    public void failedRequestIsRetried() throws Exception {
+        fake.failNext(503, 1);
+
+        PageHandle page = get(confluence.createPageAsync(SPACE, "Retried",
+                new StorageBody("<p>retried</p>")));
+
+        assertThat(page.getId(), is(notNullValue()));
+        assertThat(fake.getPageCount(), is(1));
+        assertThat(fake.getRequests().get("POST content"), is(2));
+    }
+
+    @Test
+    public void throttledRequestPausesOtherRequests() throws Exception {
+        long start = System.nanoTime();
+        fake.failNext(429, 1);
+        CompletableFuture<Page> throttled
+                = confluence.getPageAsync(SPACE, "Throttled");
+        while (fake.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        // give the client time to read the Retry-After
+        Thread.sleep(200);
+        CompletableFuture<Page> other
+                = confluence.getPageAsync(SPACE, "Other");
+
+        assertThat(get(other), is(nullValue()));
+        assertThat(System.nanoTime() - start,
+                greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(900)));
+        assertThat(get(throttled), is(nullValue()));
+        assertThat(fake.getRequestCount(), is(3));
+    }
+
+    @Test
+    public void clientErrorFailsLikeBlockingRequest() throws Exception {
+        confluence.createPage(SPACE, "Stale", new StorageBody("<p>1</p>"));
+        Page stale = confluence.getPage(SPACE, "Stale");
+        confluence.updatePage(stale, new StorageBody("<p>2</p>"));
+
+        Throwable blocking = null;
+        try {
+            // an update counts up the version it is given
+            stale.setVersion(new Version(1));
+            confluence.updatePage(stale, new StorageBody("<p>3</p>"));
+        } catch (ClientErrorException ex) {
+            blocking = ex;
+        }
+        stale.setVersion(new Version(1));
+        Throwable async = failure(confluence.updatePageAsync(stale,
+                new StorageBody("<p>3</p>")));
+
+        assertThat(blocking, is(notNullValue()));
+        assertThat(async, is(instanceOf(ClientErrorException.class)));
+        assertThat(async.getMessage(), is(blocking.getMessage()));
+    }
+
+    @Test
+    public void serverErrorFailsLikeBlockingRequest() throws Exception {
+        // one try and one retry each
+        fake.failNext(503, 2);
+        Throwable blocking = null;
+        try {
+            confluence.getPage(SPACE, "Unavailable");
+        } catch (ServerErrorException ex) {
+            blocking = ex;
+        }
+        fake.failNext(503, 2);
+        Throwable async = failure(
+                confluence.getPageAsync(SPACE, "Unavailable"));
+
+        assertThat(blocking, is(notNullValue()));
+        assertThat(async, is(instanceOf(ServerErrorException.class)));
+        assertThat(async.getMessage(), is(blocking.getMessage()));
+    }
+
+    @Test
+    public void closeStopsAsyncThreads() throws Exception {
+        get(confluence.getPageAsync(SPACE, "Any"));
+        confluence.close();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (asyncThreads() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(asyncThreads(), is(0));
+    }
+
+    private static int asyncThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive()
+                    && thread.getName().startsWith("confluence-async-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+    private static Throwable failure(Future<?> future) throws Exception {
+        try {
+            get(future);
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        fail("request did not fail");
+        return null;
+    }
+}
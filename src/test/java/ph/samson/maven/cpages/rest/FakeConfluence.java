@@ -0,0 +1,701 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import com.cedarsoftware.util.io.JsonObject;
+import com.cedarsoftware.util.io.JsonReader;
+import com.cedarsoftware.util.io.JsonWriter;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.glassfish.grizzly.http.CompressionConfig;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process stand-in for the parts of the Confluence REST API used by
+ * {@link Confluence}: the {@code content}, {@code child/attachment} and
+ * attachment {@code data} endpoints, and the {@code content/search} endpoint
+ * for the CQL queries the client makes. Like Confluence, it refuses a second
+ * page with the same title in a space.
+ *
+ * Pages and attachments are kept in memory. Every request can be delayed by a
+ * fixed latency and by the time its request and uncompressed response bodies
+ * take at a limited bandwidth, and can fail with 429 or 503 responses at a
+ * given rate, so deploys can be measured against a slow or overloaded server.
+ *
+ * Created and updated pages are returned without links, so deploying to it
+ * does not open a browser for each page.
+ */
+public class FakeConfluence extends HttpHandler implements AutoCloseable {
+
+    private static final String PREFIX = "/rest/api/";
+    private static final int MAX_LIMIT = 200;
+    private static final int WORKERS = 128;
+    private static final Pattern FILENAME
+            = Pattern.compile("filename=\"([^\"]*)\"");
+    private static final Pattern CQL_FIELD
+            = Pattern.compile("(\\w+) = (\"(?:[^\"\\\\]|\\\\.)*\"|\\w+)");
+    private static final Pattern CQL_IN
+            = Pattern.compile("(\\w+) in \\((.*)\\)");
+    private static final Pattern CQL_VALUE
+            = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"|[^\\s,]+");
+
+    private static class FakePage {
+
+        private String id;
+        private String title;
+        private String spaceKey;
+        private String parentId;
+        private int version = 1;
+        private String message;
+        private String fingerprint;
+        private String body;
+        private long created = System.nanoTime();
+    }
+
+    private static class FakeAttachment {
+
+        private String id;
+        private String pageId;
+        private String title;
+        private int version = 1;
+        private String comment;
+    }
+
+    private final Map<String, FakePage> pages = new ConcurrentHashMap<>();
+    private final Map<String, FakeAttachment> attachments
+            = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests
+            = new ConcurrentHashMap<>();
+    private final Queue<Integer> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger ids = new AtomicInteger(1000);
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final HttpServer server = new HttpServer();
+    private final NetworkListener listener;
+
+    private volatile long latency;
+    private volatile long bandwidth;
+    private volatile double throttleRate;
+    private volatile double errorRate;
+    private volatile String retryAfter = "1";
+    private volatile long searchLag;
+
+    /**
+     * Start a server on a free local port.
+     *
+     * @throws IOException if the server cannot be started
+     */
+    public FakeConfluence() throws IOException {
+        listener = new NetworkListener("fake-confluence", "localhost", 0);
+        listener.getTransport().setWorkerThreadPoolConfig(ThreadPoolConfig
+                .defaultConfig()
+                .setCorePoolSize(WORKERS)
+                .setMaxPoolSize(WORKERS));
+        // like Confluence, compress responses for clients that accept it
+        CompressionConfig compression = listener.getCompressionConfig();
+        compression.setCompressionMode(CompressionConfig.CompressionMode.ON);
+        compression.setCompressableMimeTypes("application/json");
+        server.addListener(listener);
+        server.getServerConfiguration().addHttpHandler(this, PREFIX);
+        server.start();
+    }
+
+    /**
+     * @return REST API endpoint to configure the client with
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + listener.getPort() + PREFIX;
+    }
+
+    /**
+     * @param latency milliseconds to delay every request by
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param bandwidth bytes per second each request and response body is
+     * transferred at, 0 for no limit
+     */
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param throttleRate fraction of requests rejected with 429 Too Many
+     * Requests and a Retry-After of one second, unless set otherwise
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param errorRate fraction of requests failed with 503 Service
+     * Unavailable
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Fail the next requests, whatever they are.
+     *
+     * @param status status to answer with, 429 coming with a Retry-After of
+     * one second unless set otherwise
+     * @param count number of requests to fail
+     */
+    public void failNext(int status, int count) {
+        for (int i = 0; i < count; i++) {
+            failures.add(status);
+        }
+    }
+
+    /**
+     * @param retryAfter Retry-After sent with 429 Too Many Requests
+     */
+    public void setRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @param searchLag milliseconds before a created page shows up in search
+     * results, like it does once Confluence has indexed it
+     */
+    public void setSearchLag(long searchLag) {
+        this.searchLag = searchLag;
+    }
+
+    /**
+     * @return number of pages held
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * @return number of attachments held
+     */
+    public int getAttachmentCount() {
+        return attachments.size();
+    }
+
+    /**
+     * @return number of requests served per method and path, with ids
+     * replaced by {@code {id}}
+     */
+    public Map<String, Integer> getRequests() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        requests.forEach((key, count) -> counts.put(key, count.get()));
+        return counts;
+    }
+
+    /**
+     * @return total number of requests served
+     */
+    public int getRequestCount() {
+        return requests.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /**
+     * @return bytes of request bodies received
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * @return bytes of response bodies sent
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Forget all pages, attachments, failures and request counts.
+     */
+    public void clear() {
+        failures.clear();
+        pages.clear();
+        attachments.clear();
+        requests.clear();
+        bytesIn.set(0);
+        bytesOut.set(0);
+    }
+
+    @Override
+    public void close() {
+        server.shutdownNow();
+    }
+
+    @Override
+    public void service(Request request, Response response) throws Exception {
+        String method = request.getMethod().getMethodString();
+        String path = request.getRequestURI().substring(PREFIX.length());
+        String[] segments = path.split("/");
+        byte[] in = ByteStreams.toByteArray(request.getInputStream());
+        bytesIn.addAndGet(in.length);
+        requests.computeIfAbsent(
+                method + " " + path.replaceAll("\\d+", "{id}"),
+                key -> new AtomicInteger()).incrementAndGet();
+        transfer(latency, in.length);
+
+        Integer status = failures.poll();
+        double failure = ThreadLocalRandom.current().nextDouble();
+        if (status != null) {
+            if (status == 429) {
+                response.setHeader("Retry-After", retryAfter);
+            }
+            send(response, status, message("Failed on request"));
+            return;
+        } else if (failure < throttleRate) {
+            response.setHeader("Retry-After", retryAfter);
+            send(response, 429, message("Rate limit exceeded"));
+            return;
+        } else if (failure < throttleRate + errorRate) {
+            send(response, 503, message("Service unavailable"));
+            return;
+        }
+
+        if (!segments[0].equals("content")) {
+            send(response, 404, message("Not found: " + path));
+        } else if (segments.length == 1 && method.equals("GET")) {
+            send(response, 200, findPages(request));
+        } else if (segments.length == 2 && method.equals("GET")
+                && segments[1].equals("search")) {
+            send(response, 200, search(request));
+        } else if (segments.length == 1 && method.equals("POST")) {
+            createPage(response, parse(in));
+        } else if (segments.length == 2 && method.equals("PUT")) {
+            updatePage(response, segments[1], parse(in));
+        } else if (segments.length == 2 && method.equals("DELETE")) {
+            send(response, attachments.remove(segments[1]) == null ? 404 : 204,
+                    null);
+        } else if (segments.length == 4 && method.equals("GET")
+                && segments[2].equals("descendant")) {
+            send(response, 200, descendants(segments[1], request));
+        } else if (segments.length == 4 && method.equals("GET")) {
+            send(response, 200, listAttachments(segments[1], request));
+        } else if (segments.length == 4 && method.equals("POST")) {
+            upload(response, segments[1], null, request.getContentType(), in);
+        } else if (segments.length == 5 && method.equals("PUT")) {
+            renameAttachment(response, segments[4], parse(in));
+        } else if (segments.length == 6 && method.equals("POST")) {
+            upload(response, segments[1], segments[4],
+                    request.getContentType(), in);
+        } else {
+            send(response, 404, message("Not found: " + path));
+        }
+    }
+
+    /**
+     * Wait for the given number of bytes to be transferred at the configured
+     * bandwidth, after the given delay.
+     */
+    private void transfer(long delay, long bytes) throws InterruptedException {
+        long millis = delay;
+        if (bandwidth > 0) {
+            millis += bytes * 1000 / bandwidth;
+        }
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void send(Response response, int status, Object json)
+            throws IOException, InterruptedException {
+        response.setStatus(status);
+        if (json == null) {
+            return;
+        }
+
+        Map<String, Object> args = new HashMap<>();
+        args.put(JsonWriter.TYPE, false);
+        byte[] bytes = JsonWriter.objectToJson(json, args).getBytes(UTF_8);
+        transfer(0, bytes.length);
+        bytesOut.addAndGet(bytes.length);
+        response.setContentType("application/json");
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(bytes);
+        }
+    }
+
+    private Map<String, Object> findPages(Request request) {
+        String title = request.getParameter("title");
+        String spaceKey = request.getParameter("spaceKey");
+        List<Object> found = new ArrayList<>();
+        for (FakePage page : pages.values()) {
+            if ((title == null || page.title.equals(title))
+                    && page.spaceKey.equals(spaceKey)) {
+                found.add(page);
+            }
+        }
+        return listing(found, request);
+    }
+
+    /**
+     * Answer the CQL queries of {@link Confluence#findPages} and
+     * {@link Confluence#findAttachments}: equality on {@code space} and
+     * {@code type}, and one {@code in} list of titles or containers.
+     */
+    private Map<String, Object> search(Request request) {
+        String cql = request.getParameter("cql");
+        Map<String, String> fields = new HashMap<>();
+        Matcher field = CQL_FIELD.matcher(cql);
+        while (field.find()) {
+            fields.put(field.group(1), cqlValue(field.group(2)));
+        }
+        Matcher in = CQL_IN.matcher(cql);
+        List<String> values = new ArrayList<>();
+        String inField = null;
+        if (in.find()) {
+            inField = in.group(1);
+            Matcher value = CQL_VALUE.matcher(in.group(2));
+            while (value.find()) {
+                values.add(cqlValue(value.group()));
+            }
+        }
+
+        List<Object> found = new ArrayList<>();
+        if ("attachment".equals(fields.get("type"))) {
+            for (FakeAttachment attachment : attachments.values()) {
+                if (!"container".equals(inField)
+                        || values.contains(attachment.pageId)) {
+                    found.add(attachment);
+                }
+            }
+        } else {
+            String spaceKey = fields.get("space");
+            long indexed = System.nanoTime()
+                    - TimeUnit.MILLISECONDS.toNanos(searchLag);
+            for (FakePage page : pages.values()) {
+                if ((spaceKey == null || page.spaceKey.equals(spaceKey))
+                        && (!"title".equals(inField)
+                        || values.contains(page.title))
+                        && page.created - indexed <= 0) {
+                    found.add(page);
+                }
+            }
+        }
+        return listing(found, request);
+    }
+
+    private static String cqlValue(String value) {
+        if (!value.startsWith("\"")) {
+            return value;
+        }
+        return value.substring(1, value.length() - 1)
+                .replaceAll("\\\\(.)", "$1");
+    }
+
+    private Map<String, Object> descendants(String id, Request request) {
+        List<Object> found = new ArrayList<>();
+        for (FakePage page : pages.values()) {
+            for (String p = page.parentId; p != null;
+                    p = pages.get(p).parentId) {
+                if (p.equals(id)) {
+                    found.add(page);
+                    break;
+                }
+            }
+        }
+        return listing(found, request);
+    }
+
+    private Map<String, Object> listAttachments(String pageId,
+            Request request) {
+        List<Object> found = new ArrayList<>();
+        for (FakeAttachment attachment : attachments.values()) {
+            if (attachment.pageId.equals(pageId)) {
+                found.add(attachment);
+            }
+        }
+        return listing(found, request);
+    }
+
+    /**
+     * Return the requested part of a listing, in the order the items were
+     * created.
+     */
+    private Map<String, Object> listing(List<Object> found, Request request) {
+        int start = intParameter(request, "start", 0);
+        int limit = Math.min(intParameter(request, "limit", 25), MAX_LIMIT);
+        found.sort(Comparator.comparing(item -> item instanceof FakePage
+                ? Integer.valueOf(((FakePage) item).id)
+                : Integer.valueOf(((FakeAttachment) item).id)));
+
+        List<Object> results = new ArrayList<>();
+        for (int i = start; i < Math.min(found.size(), start + limit); i++) {
+            Object item = found.get(i);
+            results.add(item instanceof FakePage
+                    ? pageJson((FakePage) item, true)
+                    : attachmentJson((FakeAttachment) item));
+        }
+        return results(results, start, limit);
+    }
+
+    private Map<String, Object> results(List<Object> results, int start,
+            int limit) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("results", results);
+        json.put("start", start);
+        json.put("limit", limit);
+        json.put("size", results.size());
+        json.put("_links", Collections.singletonMap("base", base()));
+        return json;
+    }
+
+    private void createPage(Response response, Map<?, ?> json)
+            throws IOException, InterruptedException {
+        FakePage page = new FakePage();
+        page.title = (String) json.get("title");
+        page.spaceKey = (String) ((Map<?, ?>) json.get("space")).get("key");
+        page.body = storage(json);
+        Object[] ancestors = items(json.get("ancestors"));
+        if (ancestors != null && ancestors.length > 0) {
+            page.parentId = (String) ((Map<?, ?>) ancestors[
+                    ancestors.length - 1]).get("id");
+        }
+        page.fingerprint = fingerprint(json);
+        synchronized (pages) {
+            for (FakePage other : pages.values()) {
+                if (other.title.equals(page.title)
+                        && other.spaceKey.equals(page.spaceKey)) {
+                    page = null;
+                    break;
+                }
+            }
+            if (page != null) {
+                page.id = Integer.toString(ids.incrementAndGet());
+                pages.put(page.id, page);
+            }
+        }
+        if (page == null) {
+            send(response, 400, message("A page with this title already"
+                    + " exists: " + json.get("title")));
+        } else {
+            send(response, 200, pageJson(page, false));
+        }
+    }
+
+    private void updatePage(Response response, String id, Map<?, ?> json)
+            throws IOException, InterruptedException {
+        FakePage page = pages.get(id);
+        if (page == null) {
+            send(response, 404, message("No page " + id));
+            return;
+        }
+
+        Map<?, ?> version = (Map<?, ?>) json.get("version");
+        synchronized (page) {
+            int number = ((Number) version.get("number")).intValue();
+            if (number != page.version + 1) {
+                send(response, 409, message("Version must be incremented on"
+                        + " update. Current version is: " + page.version));
+                return;
+            }
+            page.version = number;
+            page.message = (String) version.get("message");
+            page.title = (String) json.get("title");
+            page.body = storage(json);
+        }
+        send(response, 200, pageJson(page, false));
+    }
+
+    private Map<String, Object> pageJson(FakePage page, boolean links) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", page.id);
+        json.put("type", "page");
+        json.put("status", "current");
+        json.put("title", page.title);
+        json.put("space", Collections.singletonMap("key", page.spaceKey));
+
+        Map<String, Object> version = new LinkedHashMap<>();
+        version.put("number", page.version);
+        if (page.message != null) {
+            version.put("message", page.message);
+        }
+        json.put("version", version);
+
+        List<Object> ancestors = new ArrayList<>();
+        for (String id = page.parentId; id != null;
+                id = pages.get(id).parentId) {
+            ancestors.add(0, Collections.singletonMap("id", id));
+        }
+        json.put("ancestors", ancestors);
+
+        if (page.fingerprint != null) {
+            Map<String, Object> property = new LinkedHashMap<>();
+            property.put("key", "cpages");
+            property.put("value", page.fingerprint);
+            json.put("metadata", Collections.singletonMap("properties",
+                    Collections.singletonMap("cpages", property)));
+        }
+
+        if (links) {
+            Map<String, Object> linksJson = new LinkedHashMap<>();
+            linksJson.put("webui", "/pages/viewpage.action?pageId=" + page.id);
+            linksJson.put("base", base());
+            json.put("_links", linksJson);
+        } else {
+            // echoed like Confluence does on create and update
+            Map<String, Object> storage = new LinkedHashMap<>();
+            storage.put("value", page.body);
+            storage.put("representation", "storage");
+            json.put("body", Collections.singletonMap("storage", storage));
+        }
+        return json;
+    }
+
+    private void upload(Response response, String pageId,
+            String attachmentId, String contentType, byte[] in)
+            throws IOException, InterruptedException {
+        if (attachmentId != null && !attachments.containsKey(attachmentId)) {
+            send(response, 404, message("No attachment " + attachmentId));
+            return;
+        }
+
+        String boundary = contentType.replaceFirst(".*boundary=", "");
+        List<Object> results = new ArrayList<>();
+        FakeAttachment current = null;
+        for (String part : new String(in, ISO_8859_1).split(
+                "--" + Pattern.quote(boundary))) {
+            int split = part.indexOf("\r\n\r\n");
+            if (split < 0) {
+                continue;
+            }
+            String headers = part.substring(0, split);
+            String content = part.substring(split + 4,
+                    Math.max(split + 4, part.length() - 2));
+            Matcher filename = FILENAME.matcher(headers);
+            if (filename.find()) {
+                if (attachmentId != null) {
+                    current = attachments.get(attachmentId);
+                    current.version++;
+                } else {
+                    current = new FakeAttachment();
+                    current.id = Integer.toString(ids.incrementAndGet());
+                    current.pageId = pageId;
+                    attachments.put(current.id, current);
+                }
+                current.title = filename.group(1);
+                results.add(attachmentJson(current));
+            } else if (headers.contains("name=\"comment\"")
+                    && current != null) {
+                current.comment = content;
+                results.set(results.size() - 1, attachmentJson(current));
+            }
+        }
+        send(response, 200, results(results, 0, results.size()));
+    }
+
+    private void renameAttachment(Response response, String id,
+            Map<?, ?> json) throws IOException, InterruptedException {
+        FakeAttachment attachment = attachments.get(id);
+        if (attachment == null) {
+            send(response, 404, message("No attachment " + id));
+            return;
+        }
+        attachment.title = (String) json.get("title");
+        attachment.version = ((Number) ((Map<?, ?>) json.get("version"))
+                .get("number")).intValue();
+        send(response, 200, attachmentJson(attachment));
+    }
+
+    private Map<String, Object> attachmentJson(FakeAttachment attachment) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", attachment.id);
+        json.put("type", "attachment");
+        json.put("title", attachment.title);
+        json.put("version", Collections.singletonMap("number",
+                attachment.version));
+        json.put("container", Collections.singletonMap("id",
+                attachment.pageId));
+        json.put("metadata", Collections.singletonMap("comment",
+                attachment.comment));
+        return json;
+    }
+
+    private String base() {
+        return "http://localhost:" + listener.getPort();
+    }
+
+    private static Map<String, Object> message(String message) {
+        return Collections.singletonMap("message", message);
+    }
+
+    private static int intParameter(Request request, String name,
+            int defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static Map<?, ?> parse(byte[] in) {
+        return JsonReader.jsonToMaps(new String(in, UTF_8));
+    }
+
+    private static String storage(Map<?, ?> json) {
+        Map<?, ?> body = (Map<?, ?>) json.get("body");
+        return body == null ? null
+                : (String) ((Map<?, ?>) body.get("storage")).get("value");
+    }
+
+    private static String fingerprint(Map<?, ?> json) {
+        Map<?, ?> metadata = (Map<?, ?>) json.get("metadata");
+        if (metadata == null || metadata.get("properties") == null) {
+            return null;
+        }
+        Map<?, ?> property = (Map<?, ?>) ((Map<?, ?>) metadata
+                .get("properties")).get("cpages");
+        return property == null ? null : (String) property.get("value");
+    }
+
+    /**
+     * json-io reads arrays either as arrays or as objects holding them.
+     */
+    private static Object[] items(Object array) {
+        if (array instanceof JsonObject) {
+            return (Object[]) ((JsonObject) array).get("@items");
+        }
+        return (Object[]) array;
+    }
+}
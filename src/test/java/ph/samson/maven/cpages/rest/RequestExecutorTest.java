@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Edward Samson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ph.samson.maven.cpages.rest;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ServerErrorException;
+import org.junit.Test;
+import ph.samson.maven.cpages.metrics.Metrics;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class RequestExecutorTest {
+
+    private static final Clock NOW = Clock.fixed(
+            Instant.parse("2015-10-21T07:28:00Z"), ZoneOffset.UTC);
+
+    @Test
+    public void retryAfterSeconds() {
+        assertThat(RequestExecutor.retryAfter("120", NOW), is(120_000L));
+        assertThat(RequestExecutor.retryAfter(" 0 ", NOW), is(0L));
+        assertThat(RequestExecutor.retryAfter("-5", NOW), is(0L));
+        assertThat(RequestExecutor.retryAfter(
+                String.valueOf(Long.MAX_VALUE), NOW), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void retryAfterDate() {
+        assertThat(RequestExecutor.retryAfter(
+                "Wed, 21 Oct 2015 07:28:30 GMT", NOW), is(30_000L));
+        assertThat(RequestExecutor.retryAfter(
+                "Wed, 21 Oct 2015 07:27:00 GMT", NOW), is(0L));
+    }
+
+    @Test
+    public void retryAfterMissingOrInvalid() {
+        assertThat(RequestExecutor.retryAfter(null, NOW), is(nullValue()));
+        assertThat(RequestExecutor.retryAfter("soon", NOW), is(nullValue()));
+    }
+
+    @Test
+    public void idempotentRequestsRetryOverloadedStatuses() {
+        for (int status : new int[]{429, 502, 503, 504}) {
+            assertThat(String.valueOf(status),
+                    RequestExecutor.isRetryable(status, true), is(true));
+        }
+        for (int status : new int[]{200, 400, 409, 500}) {
+            assertThat(String.valueOf(status),
+                    RequestExecutor.isRetryable(status, true), is(false));
+        }
+    }
+
+    @Test
+    public void otherRequestsRetryOnlyWhenNotActedOn() {
+        assertThat(RequestExecutor.isRetryable(429, false), is(true));
+        assertThat(RequestExecutor.isRetryable(503, false), is(true));
+        assertThat(RequestExecutor.isRetryable(502, false), is(false));
+        assertThat(RequestExecutor.isRetryable(504, false), is(false));
+    }
+
+    @Test
+    public void createIsNotRetriedAfterBadGateway() throws Exception {
+        try (FakeConfluence fake = new FakeConfluence();
+                Confluence confluence = new Confluence(fake.getEndpoint(),
+                        "user", "secret", Transport.POOLED, 4, 1,
+                        new Metrics())) {
+            fake.failNext(502, 1);
+            try {
+                confluence.createPage("TEST", "Once",
+                        new StorageBody("<p>once</p>"));
+                fail("create succeeded");
+            } catch (ServerErrorException expected) {
+            }
+            assertThat(fake.getRequests().get("POST content"), is(1));
+
+            fake.failNext(502, 1);
+            assertThat(confluence.getPage("TEST", "Once"), is(nullValue()));
+            assertThat(fake.getRequests().get("GET content"), is(2));
+        }
+    }
+
+    @Test
+    public void longRetryAfterFailsInsteadOfWaiting() throws Exception {
+        try (FakeConfluence fake = new FakeConfluence();
+                Confluence confluence = new Confluence(fake.getEndpoint(),
+                        "user", "secret", Transport.POOLED, 4, 1,
+                        new Metrics())) {
+            fake.setRetryAfter("86400");
+            fake.failNext(429, 1);
+            try {
+                confluence.getPage("TEST", "Later");
+                fail("get succeeded");
+            } catch (ClientErrorException expected) {
+                assertThat(expected.getResponse().getStatus(), is(429));
+            }
+            assertThat(fake.getRequests().get("GET content"), is(1));
+        }
+    }
+}